@@ -0,0 +1,90 @@
+package org.ntnu.realfagskjelleren.rfid;
+
+import org.ntnu.realfagskjelleren.rfid.benchmarks.Benchmarks;
+import org.ntnu.realfagskjelleren.rfid.benchmarks.InMemoryDBHandler;
+import org.ntnu.realfagskjelleren.rfid.ui.consoleimpl.ConsoleUI;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the POS input handling. Lives in the same package as {@link POS} to reach the
+ * input classification.
+ *
+ * The database is an {@link InMemoryDBHandler} and the console output is thrown away, so the
+ * numbers cover the POS and the rendering of its output.
+ *
+ * @author Håvard Slettvold
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class POSBenchmark {
+
+    private String rfid = "0001234567";
+    private String ecc = "123456";
+    private String deposit = "+10";
+    private String purchase = "10";
+
+    private PrintStream out;
+    private ConsoleUI ui;
+    private POS pos;
+
+    // A new database every iteration keeps the transaction log from growing through the whole run.
+    @Setup(Level.Iteration)
+    public void setUp() {
+        out = System.out;
+        System.setOut(Benchmarks.discardingStream());
+
+        ui = new ConsoleUI(80);
+        pos = new POS(new InMemoryDBHandler(), ui);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        // Output is written by the render thread, so let it finish before the console is put back.
+        ui.close();
+        System.setOut(out);
+    }
+
+    /**
+     * A card is scanned and topped up, then scanned again and used for a purchase of the same amount.
+     */
+    @Benchmark
+    public void depositAndPurchase() {
+        pos.handleTransactions(rfid);
+        pos.handleTransactions(deposit);
+        pos.handleTransactions(rfid);
+        pos.handleTransactions(purchase);
+    }
+
+    @Benchmark
+    public boolean isRFIDOnRfid() {
+        return pos.isRFID(rfid);
+    }
+
+    // Amounts are checked against both patterns before they are treated as amounts.
+    @Benchmark
+    public boolean isRFIDOnAmount() {
+        return pos.isRFID(deposit);
+    }
+
+    @Benchmark
+    public boolean isECCOnEcc() {
+        return pos.isECC(ecc);
+    }
+
+    @Benchmark
+    public boolean isECCOnAmount() {
+        return pos.isECC(deposit);
+    }
+
+    @Benchmark
+    public int ntnuChecksum() {
+        return pos.ntnuChecksum(rfid);
+    }
+}
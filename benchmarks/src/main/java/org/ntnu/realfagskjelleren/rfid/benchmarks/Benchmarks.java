@@ -0,0 +1,47 @@
+package org.ntnu.realfagskjelleren.rfid.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with the bytes allocated per
+ * operation next to the time it took.
+ *
+ * Takes the same arguments as the JMH runner, for instance a regular expression to pick out
+ * benchmarks: java -jar target/benchmarks.jar POSBenchmark
+ *
+ * @author Håvard Slettvold
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+
+    /**
+     * @return Stream that throws away everything written to it, to stand in for System.out while
+     *         benchmarking code that prints to the console
+     */
+    public static PrintStream discardingStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+}
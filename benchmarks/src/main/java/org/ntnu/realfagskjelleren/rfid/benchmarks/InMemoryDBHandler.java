@@ -0,0 +1,408 @@
+package org.ntnu.realfagskjelleren.rfid.benchmarks;
+
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.model.Version;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link DBHandler} that keeps everything in maps and lists, so benchmarks of the POS measure the
+ * POS and not a database.
+ *
+ * Users are stored as rows and handed out as new {@link User} objects, the same way a database
+ * would. Statistics are answered straight from the rows and the transaction log. Everything is
+ * synchronized on the handler, which is enough for benchmarks and nothing more.
+ *
+ * @author Håvard Slettvold
+ */
+public class InMemoryDBHandler implements DBHandler {
+
+    private final Map<Integer, Row> usersById = new HashMap<>();
+    private final Map<String, Row> usersByRfid = new HashMap<>();
+    private final List<Transaction> transactions = new ArrayList<>();
+    private final List<Version> versions = new ArrayList<>();
+    private int nextUserId = 1;
+
+    public InMemoryDBHandler() {
+        versions.add(new Version("2.0", now()));
+    }
+
+    @Override
+    public boolean testConnection() {
+        return true;
+    }
+
+    @Override
+    public boolean createDatabase() {
+        return true;
+    }
+
+    @Override
+    public synchronized Version getVersion() {
+        return versions.get(versions.size() - 1);
+    }
+
+    @Override
+    public synchronized boolean setVersion(String version) {
+        versions.add(new Version(version, now()));
+        return true;
+    }
+
+    @Override
+    public synchronized List<Version> getVersionHistory() {
+        return new ArrayList<>(versions);
+    }
+
+    @Override
+    public boolean applyMigration(Migration migration) {
+        return setVersion(migration.getVersion());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized User getOrCreate(String rfid) throws SQLException {
+        Row row = usersByRfid.get(rfid);
+        if (row == null) {
+            row = new Row(nextUserId++, rfid);
+            usersById.put(row.id, row);
+            usersByRfid.put(rfid, row);
+        }
+
+        return row.toUser();
+    }
+
+    @Override
+    public synchronized User getUser(int ecc) throws SQLException {
+        // ECCs are not handed out, so there is nothing to find.
+        return null;
+    }
+
+    @Override
+    public synchronized void updateUserRfid(int user_id, String rfid) throws SQLException {
+        Row row = usersById.get(user_id);
+        if (row == null) return;
+
+        usersByRfid.remove(row.rfid);
+        row.rfid = rfid;
+        usersByRfid.put(rfid, row);
+    }
+
+    @Override
+    public synchronized boolean rfidExists(String rfid) throws SQLException {
+        return usersByRfid.containsKey(rfid);
+    }
+
+    @Override
+    public synchronized boolean eccExists(int ecc) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        Row to = usersById.get(toUser);
+        Row from = usersById.remove(fromUser);
+        if (to == null || from == null) return false;
+
+        usersByRfid.remove(from.rfid);
+        to.credit += from.credit;
+        to.spent += from.spent;
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction t = transactions.get(i);
+            if (t.getUserid() == fromUser) {
+                transactions.set(i, new Transaction(t.getId(), toUser, to.rfid, t.getValue(), t.getNew_balance(), t.isDeposit(), t.getDate()));
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void deposit(String rfid, int value) throws SQLException {
+        Row row = usersByRfid.get(rfid);
+        if (row != null) row.credit += value;
+    }
+
+    @Override
+    public synchronized void deduct(String rfid, int value) throws SQLException {
+        Row row = usersByRfid.get(rfid);
+        if (row != null) row.credit -= value;
+    }
+
+    @Override
+    public synchronized int makeDeposit(User user, int value) throws SQLException {
+        Row row = usersById.get(user.getId());
+        if (row == null) return -1;
+
+        row.credit += value;
+        log(row, value, true);
+        return row.credit;
+    }
+
+    @Override
+    public synchronized int makePurchase(User user, int value) throws SQLException {
+        Row row = usersById.get(user.getId());
+        if (row == null || row.credit < value) return -1;
+
+        row.credit -= value;
+        if (value < 1000) row.spent += value;
+        log(row, value, false);
+        return row.credit;
+    }
+
+    @Override
+    public synchronized int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+        Row row = usersById.get(user_id);
+        if (row == null) return Integer.MIN_VALUE;
+
+        row.credit += is_deposit ? value : -value;
+        if (!is_deposit && value < 1000) row.spent += value;
+        row.lastUsed = now();
+        transactions.add(new Transaction(transactions.size() + 1, row.id, row.rfid, value, row.credit, is_deposit, date));
+        return row.credit;
+    }
+
+    @Override
+    public synchronized List<User> getAllUsers() throws SQLException {
+        List<User> users = new ArrayList<>();
+        for (Row row : usersById.values()) {
+            users.add(row.toUser());
+        }
+
+        return users;
+    }
+
+    @Override
+    public synchronized List<User> getUsersAfter(User user, int amount) throws SQLException {
+        List<Row> rows = new ArrayList<>(usersById.values());
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                int byLastUsed = a.lastUsed.compareTo(b.lastUsed);
+                return byLastUsed != 0 ? byLastUsed : Integer.compare(a.id, b.id);
+            }
+        });
+
+        List<User> page = new ArrayList<>();
+        for (Row row : rows) {
+            if (page.size() == amount) break;
+            if (user == null || row.lastUsed.after(user.getLastUsed())
+                    || (row.lastUsed.equals(user.getLastUsed()) && row.id > user.getId())) {
+                page.add(row.toUser());
+            }
+        }
+
+        return page;
+    }
+
+    @Override
+    public synchronized int getTotalValue() throws SQLException {
+        int total = 0;
+        for (Row row : usersById.values()) {
+            total += row.credit;
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized int getUserCount() throws SQLException {
+        return usersById.size();
+    }
+
+    @Override
+    public List<Transaction> getTransactions(int amount) throws SQLException {
+        return getTransactionsBefore(0, Integer.MAX_VALUE, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactions(int user_id, int amount) throws SQLException {
+        return getTransactionsBefore(user_id, Integer.MAX_VALUE, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsBefore(int id, int amount) throws SQLException {
+        return getTransactionsBefore(0, id, amount);
+    }
+
+    @Override
+    public synchronized List<Transaction> getTransactionsBefore(int user_id, int id, int amount) throws SQLException {
+        List<Transaction> page = new ArrayList<>();
+        for (int i = transactions.size() - 1; i >= 0 && page.size() < amount; i--) {
+            Transaction t = transactions.get(i);
+            if (t.getId() < id && (user_id == 0 || t.getUserid() == user_id)) page.add(t);
+        }
+
+        return page;
+    }
+
+    @Override
+    public List<Transaction> getTransactionsAfter(int id, int amount) throws SQLException {
+        return getTransactionsAfter(0, id, amount);
+    }
+
+    @Override
+    public synchronized List<Transaction> getTransactionsAfter(int user_id, int id, int amount) throws SQLException {
+        List<Transaction> page = new ArrayList<>();
+        for (int i = 0; i < transactions.size() && page.size() < amount; i++) {
+            Transaction t = transactions.get(i);
+            if (t.getId() > id && (user_id == 0 || t.getUserid() == user_id)) page.add(t);
+        }
+
+        Collections.reverse(page);
+        return page;
+    }
+
+    @Override
+    public synchronized List<Transaction> getTransactionsFromLastHours(int hours) throws SQLException {
+        long since = System.currentTimeMillis() - hours * 3600000L;
+
+        List<Transaction> recent = new ArrayList<>();
+        for (Transaction t : transactions) {
+            if (t.getDate().getTime() > since) recent.add(t);
+        }
+
+        return recent;
+    }
+
+    @Override
+    public void visitTransactionsFromLastHours(int hours, RowVisitor<Transaction> visitor) throws SQLException {
+        for (Transaction t : getTransactionsFromLastHours(hours)) {
+            if (!visitor.visit(t)) return;
+        }
+        visitor.done();
+    }
+
+    @Override
+    public String getSalesForDate(String date) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public List<String> topDays() throws SQLException {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public synchronized int totalSpendings(String rfid) throws SQLException {
+        Row row = usersByRfid.get(rfid);
+        return row == null ? -1 : row.spent;
+    }
+
+    @Override
+    public synchronized List<String> getTopTen() throws SQLException {
+        List<Row> rows = new ArrayList<>(usersById.values());
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                return Integer.compare(b.spent, a.spent);
+            }
+        });
+
+        List<String> topTen = new ArrayList<>();
+        for (Row row : rows.subList(0, Math.min(10, rows.size()))) {
+            topTen.add(row.rfid + "|" + row.spent);
+        }
+
+        return topTen;
+    }
+
+    @Override
+    public List<String> getTopTenFromLastHours(int hours) throws SQLException {
+        return getTopTen();
+    }
+
+    @Override
+    public void rebuildStatistics() throws SQLException {
+    }
+
+    @Override
+    public synchronized void transaction(int user_id, int value, boolean is_deposit, int new_balance) throws SQLException {
+        Row row = usersById.get(user_id);
+        if (row != null) {
+            transactions.add(new Transaction(transactions.size() + 1, user_id, row.rfid, value, new_balance, is_deposit, now()));
+        }
+    }
+
+    @Override
+    public synchronized int pruneInactiveRFIDs() throws SQLException {
+        int pruned = 0;
+        Iterator<Row> it = usersById.values().iterator();
+        while (it.hasNext()) {
+            Row row = it.next();
+            if (getTransactions(row.id, 1).isEmpty()) {
+                usersByRfid.remove(row.rfid);
+                it.remove();
+                pruned++;
+            }
+        }
+
+        return pruned;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> importUsers(List<User> users) throws SQLException {
+        Map<String, Integer> ids = new HashMap<>();
+        for (User user : users) {
+            Row row = usersByRfid.get(user.getRfid());
+            if (row == null) {
+                getOrCreate(user.getRfid());
+                row = usersByRfid.get(user.getRfid());
+            }
+            row.credit += user.getCredit();
+            ids.put(row.rfid, row.id);
+        }
+
+        return ids;
+    }
+
+    @Override
+    public synchronized void importTransactions(List<Transaction> imported) throws SQLException {
+        for (Transaction t : imported) {
+            transactions.add(new Transaction(transactions.size() + 1, t.getUserid(), t.getRfid(), t.getValue(), t.getNew_balance(), t.isDeposit(), t.getDate()));
+        }
+    }
+
+    private void log(Row row, int value, boolean is_deposit) {
+        Timestamp now = now();
+        row.lastUsed = now;
+        transactions.add(new Transaction(transactions.size() + 1, row.id, row.rfid, value, row.credit, is_deposit, now));
+    }
+
+    private static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+
+    private static class Row {
+
+        private final int id;
+        private String rfid;
+        private int credit;
+        private int spent;
+        private final Timestamp created = now();
+        private Timestamp lastUsed = created;
+
+        private Row(int id, String rfid) {
+            this.id = id;
+            this.rfid = rfid;
+        }
+
+        private User toUser() {
+            return new User(id, rfid, false, credit, created, lastUsed);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.ntnu.realfagskjelleren.rfid.benchmarks;
+
+import org.ntnu.realfagskjelleren.rfid.db.cache.CachingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.metrics.LatencyHistogram;
+import org.ntnu.realfagskjelleren.rfid.db.metrics.MetricsInvocationHandler;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.MigrationRunner;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.mysqlimpl.MySQLDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
+import org.ntnu.realfagskjelleren.rfid.settings.Settings;
+import org.ntnu.realfagskjelleren.rfid.settings.VerifySettings;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a {@link DBHandler} the way a number of tills sharing one database would, and reports how
+ * it held up.
+ *
+ * Every simulated till repeats the sequence of a sale: a card is scanned, which looks up or creates
+ * the user, the amount is typed in, and the purchase is made. A card that can't pay for the amount
+ * is topped up instead. Cards are drawn from a fixed population with a Zipf distribution, so a few
+ * regulars come back again and again while most cards are seen rarely, which is what makes tills
+ * collide on the same user.
+ *
+ * Afterwards the throughput, the latency and errors of whole sales and of every DBHandler method
+ * are printed, and the newest logged balance of every card is checked against its credit.
+ *
+ *     java -cp target/benchmarks.jar org.ntnu.realfagskjelleren.rfid.benchmarks.LoadSimulator [options]
+ *
+ * Options, all optional:
+ *     --db memory|sqlite|mysql  Database to drive, mysql reads its connection from settings/rfid.conf (sqlite)
+ *     --file path               SQLite file to use, a temporary one is made and deleted otherwise
+ *     --tills n                 Number of simulated tills (4)
+ *     --seconds n               How long to run (30)
+ *     --cards n                 Number of cards in the population (2000)
+ *     --skew s                  Zipf exponent, 0 picks every card equally often (1.0)
+ *     --think ms                Time from a card being scanned until the amount is entered (0)
+ *     --cache n                 Put a user cache of this size in front of the database, as the till does (0)
+ *
+ * @author Håvard Slettvold
+ */
+public class LoadSimulator {
+
+    // Prices of what is sold most, and what a card is topped up with when it can't pay.
+    private static final int[] AMOUNTS = {10, 15, 20, 25, 30, 50};
+    private static final int TOP_UP = 200;
+    // Errors printed as they happen, the rest are only counted.
+    private static final int ERRORS_SHOWN = 5;
+
+    private final DBHandler db;
+    private final MetricsInvocationHandler metrics;
+    private final int tills;
+    private final int cards;
+    private final long thinkMillis;
+    private final double[] cumulative;
+
+    private final LatencyHistogram sales = new LatencyHistogram();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong topUps = new AtomicLong();
+
+    /**
+     * @param db DBHandler to drive, with the tables in place
+     * @param tills Number of tills making sales at the same time
+     * @param cards Number of cards in the population
+     * @param skew Zipf exponent of how often each card is used
+     * @param thinkMillis Milliseconds from scan until the amount is entered
+     */
+    public LoadSimulator(DBHandler db, int tills, int cards, double skew, long thinkMillis) {
+        this.metrics = new MetricsInvocationHandler(db);
+        this.db = metrics.getDBHandler();
+        this.tills = tills;
+        this.cards = cards;
+        this.thinkMillis = thinkMillis;
+
+        // The card of rank k is used in proportion to 1 / k^skew.
+        this.cumulative = new double[cards];
+        double total = 0;
+        for (int k = 1; k <= cards; k++) {
+            total += 1 / Math.pow(k, skew);
+            cumulative[k - 1] = total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            System.err.println("Options are given as pairs, for instance: --db sqlite --tills 8 --seconds 60");
+            System.exit(1);
+        }
+
+        String type = option(options, "db", "sqlite");
+        File temporary = null;
+        DBHandler db;
+        switch (type) {
+            case "memory":
+                db = new InMemoryDBHandler();
+                break;
+            case "sqlite":
+                String file = options.get("file");
+                if (file == null) {
+                    temporary = File.createTempFile("loadsimulator", ".db");
+                    temporary.delete();
+                    file = temporary.getPath();
+                }
+                db = new SQLiteDBHandler(file);
+                break;
+            case "mysql":
+                Settings settings = VerifySettings.readSettings();
+                if (settings == null) System.exit(1);
+                db = new MySQLDBHandler(settings);
+                break;
+            default:
+                System.err.println("--db needs to be 'memory', 'sqlite' or 'mysql'.");
+                System.exit(1);
+                return;
+        }
+
+        if (!prepare(db)) {
+            System.err.println("Could not connect to the database or bring its schema up to date.");
+            System.exit(1);
+        }
+
+        int cacheSize = Integer.parseInt(option(options, "cache", "0"));
+        if (cacheSize > 0) db = new CachingDBHandler(db, cacheSize);
+
+        LoadSimulator simulator = new LoadSimulator(
+                db,
+                Integer.parseInt(option(options, "tills", "4")),
+                Integer.parseInt(option(options, "cards", "2000")),
+                Double.parseDouble(option(options, "skew", "1.0")),
+                Long.parseLong(option(options, "think", "0"))
+        );
+
+        try {
+            simulator.run(Integer.parseInt(option(options, "seconds", "30")));
+            simulator.checkBalances(db);
+        } finally {
+            db.close();
+            if (temporary != null) {
+                for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+                    new File(temporary.getPath() + suffix).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tills for the given time and prints the results.
+     *
+     * @param seconds How long the tills make sales for
+     * @throws InterruptedException if interrupted while waiting for the tills
+     */
+    public void run(int seconds) throws InterruptedException {
+        System.out.println(String.format("Running %d tills for %d s against %d cards ...", tills, seconds, cards));
+
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch finished = new CountDownLatch(tills);
+        final AtomicLong errorsShown = new AtomicLong();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tills; i++) {
+            Thread till = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            try {
+                                sale(ThreadLocalRandom.current());
+                            } catch (SQLException e) {
+                                if (errorsShown.incrementAndGet() <= ERRORS_SHOWN) {
+                                    System.err.println(Thread.currentThread().getName() + ": " + e.getMessage());
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "till-" + (i + 1));
+            till.setDaemon(true);
+            till.start();
+        }
+        finished.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long count = sales.getCount();
+        long errors = sales.getErrors();
+        System.out.println();
+        System.out.println(String.format("Sales: %d (%.1f/s), top-ups %d, refused purchases %d, errors %d (%.2f%%)",
+                count, count / elapsed, topUps.get(), refused.get(), errors, count == 0 ? 0 : 100.0 * errors / count));
+        System.out.println(String.format("Sale latency in ms: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                millis(sales.getPercentile(50)),
+                millis(sales.getPercentile(90)),
+                millis(sales.getPercentile(99)),
+                millis(sales.getPercentile(99.9)),
+                millis(sales.getMax())
+        ));
+        System.out.println();
+        System.out.println("Database calls (latencies in ms):");
+        for (String row : metrics.report()) {
+            if (row.equals("===")) continue;
+            System.out.println("    " + row.replace(" | ", "|").replace("|", " | "));
+        }
+    }
+
+    /**
+     * One sale at one till: scan, enter the amount, commit. Time spent thinking is not counted
+     * towards the latency of the sale.
+     */
+    private void sale(Random random) throws SQLException, InterruptedException {
+        String rfid = card(random);
+
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            User user = db.getOrCreate(rfid);
+            if (user == null) throw new SQLException("No user returned for RFID '" + rfid + "'.");
+
+            if (thinkMillis > 0) {
+                long thinking = System.nanoTime();
+                Thread.sleep(thinkMillis);
+                start += System.nanoTime() - thinking;
+            }
+
+            int amount = AMOUNTS[random.nextInt(AMOUNTS.length)];
+            // The credit shown at scan may be out of date, the database has the final word.
+            if (user.getCredit() < amount) {
+                db.makeDeposit(user, TOP_UP);
+                topUps.incrementAndGet();
+            }
+            else if (db.makePurchase(user, amount) == -1) {
+                refused.incrementAndGet();
+            }
+            error = false;
+        } finally {
+            sales.record(System.nanoTime() - start, error);
+        }
+    }
+
+    /**
+     * Checks that the newest balance logged for every card is the credit the card has. A mismatch
+     * means two tills wrote over each other.
+     *
+     * @param db DBHandler to read through, so the check is not part of the measured calls
+     */
+    public void checkBalances(DBHandler db) throws SQLException {
+        int checked = 0;
+        int mismatched = 0;
+        for (int k = 1; k <= cards; k++) {
+            String rfid = rfid(k);
+            if (!db.rfidExists(rfid)) continue;
+
+            User user = db.getOrCreate(rfid);
+            List<Transaction> newest = db.getTransactions(user.getId(), 1);
+            if (newest.isEmpty()) continue;
+
+            checked++;
+            if (newest.get(0).getNew_balance() != user.getCredit()) {
+                mismatched++;
+                if (mismatched <= ERRORS_SHOWN) {
+                    System.err.println(String.format("RFID '%s' has credit %d, but the newest logged balance is %d.",
+                            rfid, user.getCredit(), newest.get(0).getNew_balance()));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("Balances checked: %d, mismatched: %d", checked, mismatched));
+    }
+
+    private String card(Random random) {
+        double target = random.nextDouble() * cumulative[cards - 1];
+        int index = Arrays.binarySearch(cumulative, target);
+        if (index < 0) index = -index - 1;
+
+        return rfid(Math.min(index, cards - 1) + 1);
+    }
+
+    private static String rfid(int rank) {
+        return String.format("%010d", rank);
+    }
+
+    /**
+     * Creates the tables and runs the migrations, like the POS does at start.
+     */
+    private static boolean prepare(DBHandler db) {
+        if (!db.testConnection()) return false;
+        if (!db.createDatabase()) return false;
+        if (db.getVersion() == null && !db.setVersion("2.0")) return false;
+
+        return MigrationRunner.run(db);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        if (args.length % 2 != 0) return null;
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) return null;
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : value;
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+}
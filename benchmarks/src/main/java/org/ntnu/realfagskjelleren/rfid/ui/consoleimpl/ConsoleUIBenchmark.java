@@ -0,0 +1,92 @@
+package org.ntnu.realfagskjelleren.rfid.ui.consoleimpl;
+
+import org.ntnu.realfagskjelleren.rfid.benchmarks.Benchmarks;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the table rendering in {@link ConsoleUI}. Lives in the same package to reach
+ * {@link ConsoleUI#table(List)}.
+ *
+ * Every benchmark renders one full page of rows, and the console output is thrown away.
+ *
+ * @author Håvard Slettvold
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleUIBenchmark {
+
+    private static final int ROWS = 25;
+
+    private PrintStream out;
+    private ConsoleUI ui;
+    private List<String> tableData;
+    private List<Transaction> transactions;
+    private List<User> users;
+
+    @Setup
+    public void setUp() {
+        out = System.out;
+        System.setOut(Benchmarks.discardingStream());
+
+        ui = new ConsoleUI(80);
+        tableData = new ArrayList<>();
+        transactions = new ArrayList<>();
+        users = new ArrayList<>();
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        tableData.add("ID | RFID | Balance | Created | Last used");
+        tableData.add("===");
+        for (int i = 0; i < ROWS; i++) {
+            String rfid = String.format("%010d", 1234567 + i * 7919);
+            if (i != 0 && i % 5 == 0) {
+                tableData.add("---");
+            }
+            tableData.add(String.format("%d|%s|%d|%s|%s", i + 1, rfid, i * 10, now, now));
+            transactions.add(new Transaction(i + 1, i + 1, rfid, 20 + i, i * 10, i % 3 == 0, now));
+            users.add(new User(i + 1, rfid, false, i * 10, now, now));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        // Output is written by the render thread, so let it finish before the console is put back.
+        ui.close();
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public List<String> table() {
+        return ui.table(tableData);
+    }
+
+    @Benchmark
+    public void showTransactions() {
+        RowVisitor<Transaction> pager = ui.showTransactions();
+        for (Transaction transaction : transactions) {
+            pager.visit(transaction);
+        }
+        pager.done();
+    }
+
+    @Benchmark
+    public void showUsers() {
+        RowVisitor<User> pager = ui.showUsers();
+        for (User user : users) {
+            pager.visit(user);
+        }
+        pager.done();
+    }
+}
@@ -5,18 +5,29 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.cards.CardDecoder;
+import org.ntnu.realfagskjelleren.rfid.cards.CardType;
+import org.ntnu.realfagskjelleren.rfid.cards.NtnuChecksum;
+import org.ntnu.realfagskjelleren.rfid.db.cache.CachingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.cache.LeaderboardDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.metrics.MetricsInvocationHandler;
 import org.ntnu.realfagskjelleren.rfid.db.migrations.ConvertDataFromRFID1;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.MigrationRunner;
 import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
 import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
 import org.ntnu.realfagskjelleren.rfid.db.model.User;
 import org.ntnu.realfagskjelleren.rfid.db.model.Version;
 import org.ntnu.realfagskjelleren.rfid.db.mysqlimpl.MySQLDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.offline.OfflineDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
 import org.ntnu.realfagskjelleren.rfid.settings.Settings;
 import org.ntnu.realfagskjelleren.rfid.settings.VerifySettings;
 import org.ntnu.realfagskjelleren.rfid.ui.consoleimpl.ConsoleUI;
 import org.ntnu.realfagskjelleren.rfid.ui.model.UI;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -39,12 +50,19 @@ public class POS {
     private static Logger logger = LogManager.getLogger(POS.class.getName());
 
     private final String RFID_VERSION = "2.1";
+    // Users read from the database per query when listing them.
+    private final int USERS_PER_QUERY = 100;
 
     private Settings settings;
     private DBHandler db;
     private UI ui;
+    private final CardDecoder cards = CardDecoder.standard();
+    private MetricsInvocationHandler metrics;
 
     private User currentUser = null;
+    // The page of transactions shown last, newest first, and the user it was for, or null for all users.
+    private List<Transaction> shownTransactions = new ArrayList<>();
+    private Integer shownTransactionsUser = null;
 
     public POS() {
         // Attempt to read settings
@@ -56,12 +74,18 @@ public class POS {
         // Start the UI
         if (!initiateUI()) exit_application();
 
-        // Attempt to find old data to import into new system
-        if (!attemptImport()) exit_application();
-
         // Run migrations
         if (!runMigrations()) exit_application();
 
+        // Attempt to find old data to import into new system. This needs the schema to be up to date.
+        if (!attemptImport()) exit_application();
+
+        // Build the in-memory leaderboard. This needs all transactions to be in place.
+        if (!initiateLeaderboard()) exit_application();
+
+        // Measure the database calls made by the POS, outside every other layer.
+        if (!initiateMetrics()) exit_application();
+
         // Launch the updater
         if (settings.getAutomaticUpdates()) new Updater(ui, db);
 
@@ -69,6 +93,19 @@ public class POS {
         start();
     }
 
+    /**
+     * Creates a POS around a database and UI that are already set up. Settings, migrations, the
+     * import and the updater are skipped, and the input loop is not started, so input has to be fed
+     * through {@link #handleTransactions(String)}. Meant for driving the POS from code, like benchmarks.
+     *
+     * @param db Database to use
+     * @param ui UI to use
+     */
+    public POS(DBHandler db, UI ui) {
+        this.db = db;
+        this.ui = ui;
+    }
+
     /**
      * Loads settings for the POS. This is done in it's own class to perform some validations on the
      * data in the settings file.
@@ -88,12 +125,48 @@ public class POS {
 
     /**
      * Attempts to setup and test the connection to the database.
-     * Default implementation is MySQL.
+     * Default implementation is MySQL, an embedded SQLite database can be chosen in the settings.
      *
      * @return true if the database connection was successful and tables exist
      */
     private boolean initiateDB() {
-        db = new MySQLDBHandler(settings);
+        try {
+            switch (settings.getDbType()) {
+                case "mysql":
+                    db = new MySQLDBHandler(settings);
+                    break;
+                case "sqlite":
+                    db = new SQLiteDBHandler(settings.getSqliteFile());
+                    break;
+                default:
+                    logger.error("Setting for database type needs to be 'mysql' or 'sqlite'.");
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            logger.error("Settings for the database connection pool and slow query threshold need to be integers.");
+            return false;
+        } catch (IllegalArgumentException e) {
+            logger.error(e.getMessage());
+            return false;
+        }
+
+        try {
+            int userCacheSize = settings.getUserCacheSize();
+            if (userCacheSize > 0) db = new CachingDBHandler(db, userCacheSize);
+        } catch (NumberFormatException e) {
+            logger.error("Setting for user cache size needs to be an integer.");
+            return false;
+        }
+
+        if (settings.getOfflineMode()) {
+            try {
+                db = new OfflineDBHandler(db, settings.getOfflineJournalFile());
+            } catch (IOException e) {
+                logger.error("Could not open the offline journal: " + e.getMessage());
+                return false;
+            }
+        }
+
         logger.trace("Database handler created, checking connection ...");
 
         if (!db.testConnection()) return false;
@@ -183,15 +256,70 @@ public class POS {
         return false;
     }
 
+    /**
+     * Brings the database schema up to date.
+     *
+     * @return true if all migrations were applied
+     */
     private boolean runMigrations() {
+        if (!MigrationRunner.run(db)) {
+            ui.error("Failed to update the database. Check the logs for more information.");
+            return false;
+        }
 
-        Version version = db.getVersion();
+        return true;
+    }
 
-        switch (version.getVersion()) {
-            case "2.0":
-                db.setVersion("2.1");
+    /**
+     * Puts the in-memory leaderboard in front of the database and seeds it with recent purchases.
+     * If seeding fails, the top ten is read from the database as before.
+     *
+     * @return true unless the leaderboard settings are invalid
+     */
+    private boolean initiateLeaderboard() {
+        int leaderboardHours;
+
+        try {
+            leaderboardHours = settings.getLeaderboardHours();
+        } catch (NumberFormatException e) {
+            logger.error("Setting for leaderboard hours needs to be an integer.");
+            return false;
+        }
+
+        if (leaderboardHours <= 0) return true;
+
+        LeaderboardDBHandler leaderboard = new LeaderboardDBHandler(db, leaderboardHours);
+        try {
+            leaderboard.seed();
+        } catch (SQLException e) {
+            logger.error("Failed to seed the leaderboard, the top ten will be read from the database.");
+            return true;
         }
 
+        db = leaderboard;
+        return true;
+    }
+
+    /**
+     * Wraps the database in a proxy from {@link MetricsInvocationHandler}, which records the latency of every call.
+     * The latencies are shown with the /metrics command and logged at the interval in the settings.
+     *
+     * @return true if the metrics were set up
+     */
+    private boolean initiateMetrics() {
+        int interval;
+
+        try {
+            interval = settings.getMetricsLogInterval();
+        } catch (NumberFormatException e) {
+            logger.error("Setting for metrics log interval needs to be an integer.");
+            return false;
+        }
+
+        metrics = new MetricsInvocationHandler(db);
+        db = metrics.getDBHandler();
+
+        if (interval > 0) metrics.logEvery(interval);
         return true;
     }
 
@@ -296,28 +424,67 @@ public class POS {
                         transactions = db.getTransactions(currentUser.getId(), transactionsToShow);
                     }
 
-                    if (transactions.isEmpty()) {
-                        ui.display("No transactions!");
+                    shownTransactions = transactions;
+                    shownTransactionsUser = currentUser == null ? null : currentUser.getId();
+                    showTransactions(transactions);
+                } catch (SQLException e) {
+                    ui.error("SQL error occurred while trying to retrieve transactions from the database. Check your connection.");
+                    return;
+                }
+                break;
+            case "/older":
+            case "/newer":
+                // Pages on from the ids at the ends of the page shown last, in pages of the same size.
+                if (shownTransactions.isEmpty()) {
+                    ui.display("Show some transactions first.");
+                    break;
+                }
+
+                try {
+                    List<Transaction> page;
+                    if (args[0].equals("/older")) {
+                        int oldest = shownTransactions.get(shownTransactions.size() - 1).getId();
+                        if (shownTransactionsUser == null) {
+                            page = db.getTransactionsBefore(oldest, shownTransactions.size());
+                        }
+                        else {
+                            page = db.getTransactionsBefore(shownTransactionsUser, oldest, shownTransactions.size());
+                        }
                     }
                     else {
-                        ui.display("Showing transactions.");
-                        ui.showTransactions(transactions);
+                        int newest = shownTransactions.get(0).getId();
+                        if (shownTransactionsUser == null) {
+                            page = db.getTransactionsAfter(newest, shownTransactions.size());
+                        }
+                        else {
+                            page = db.getTransactionsAfter(shownTransactionsUser, newest, shownTransactions.size());
+                        }
+                    }
+
+                    if (page.isEmpty()) {
+                        ui.display("No more transactions in that direction.");
+                    }
+                    else {
+                        shownTransactions = page;
+                        showTransactions(page);
                     }
                 } catch (SQLException e) {
                     ui.error("SQL error occurred while trying to retrieve transactions from the database. Check your connection.");
                     return;
                 }
                 break;
+            case "/metrics":
+                if (metrics == null) {
+                    ui.display("Metrics are not enabled.");
+                }
+                else {
+                    ui.display("Latency of database calls since start, in milliseconds.");
+                    ui.showTable(metrics.report());
+                }
+                break;
             case "/users":
                 try {
-                    List<User> users = db.getAllUsers();
-                    if (users.isEmpty()) {
-                        ui.display("No users!");
-                    }
-                    else {
-                        ui.display("Showing all users.");
-                        ui.showUsers(users);
-                    }
+                    showAllUsers();
                 } catch (SQLException e) {
                     ui.error("SQL error occurred while trying to retrieve users from the database. Check your connection.");
                     return;
@@ -538,9 +705,8 @@ public class POS {
                 }
 
                 try {
-                    int otherCredit = otherUser.getCredit();
+                    // The credit is moved by the merge itself, as the other card may be in use at another till.
                     db.mergeUser(currentUser.getId(), otherUser.getId());
-                    db.deposit(currentUser.getRfid(), otherCredit);
 
                     ui.endTransaction("Successfully merged RFIDs.");
                     resetCurrentInfo();
@@ -569,6 +735,19 @@ public class POS {
                     ui.error("SQL error occurred while trying to prune inactive RFIDs.");
                 }
                 break;
+            case "/rebuildStats":
+                if (currentUser != null) {
+                    ui.display("This command cannot be run when in a transaction block.");
+                    return;
+                }
+
+                try {
+                    db.rebuildStatistics();
+                    ui.display("Statistics rebuilt from the transaction log.");
+                } catch (SQLException e) {
+                    ui.error("SQL error occurred while trying to rebuild statistics.");
+                }
+                break;
             case "/version":
                 Version version = db.getVersion();
 
@@ -587,7 +766,9 @@ public class POS {
      * @param input
      */
     public void handleTransactions(String input) {
-        if (isRFID(input)) {
+        CardType cardType = cards.classify(input);
+
+        if (cardType == CardType.RFID) {
             if (currentUser != null) {
                 if (input.equals(currentUser.getRfid())) {
                     ui.display(String.format("%s read again. Ignoring..", currentUser.getRfid()));
@@ -625,8 +806,8 @@ public class POS {
                 ui.startTransaction(currentUser);
             }
         }
-        else if (isECC(input)) {
-            // No need for a try/catch, isECC checks if it's 6 digits.
+        else if (cardType == CardType.ECC) {
+            // No need for a try/catch, the ECC format is 6 digits.
             int ecc = Integer.parseInt(input);
 
             try {
@@ -670,39 +851,31 @@ public class POS {
                 int new_balance;
 
                 if (is_deposit) {
-                    // Make the deposit
+                    // Make the deposit, the transaction is logged along with it.
                     try {
-                        db.deposit(currentUser.getRfid(), amount);
+                        new_balance = db.makeDeposit(currentUser, amount);
                     } catch (SQLException e) {
                         ui.error("SQL error occurred while attempting to make deposit. Transaction aborted.");
                         return;
                     }
 
-                    new_balance = currentUser.getCredit() + amount;
                     ui.endTransaction(String.format("Deposited %d into RFID '%s'. New balance: %d", amount, currentUser.getRfid(), new_balance));
                 }
                 else {
-                    if (amount > currentUser.getCredit()) {
-                        ui.error("The balance on this card isn't high enough for that purchase.");
+                    // The database checks the balance, so a stale currentUser can't overdraw the card.
+                    try {
+                        new_balance = db.makePurchase(currentUser, amount);
+                    } catch (SQLException e) {
+                        ui.error("SQL error occurred while trying to withdraw money from this account. Transaction aborted.");
                         return;
                     }
-                    else {
-                        try {
-                            db.deduct(currentUser.getRfid(), amount);
-                        } catch (SQLException e) {
-                            ui.error("SQL error occurred while trying to withdraw money from this account. Transaction aborted.");
-                            return;
-                        }
-                        new_balance = currentUser.getCredit() - amount;
-                        ui.endTransaction(String.format("Withdrew %d from RFID '%s'. New balance: %d", amount, currentUser.getRfid(), new_balance));
+
+                    if (new_balance == -1) {
+                        ui.error("The balance on this card isn't high enough for that purchase.");
+                        return;
                     }
-                }
 
-                try {
-                    db.transaction(currentUser.getId(), amount, is_deposit, new_balance);
-                } catch (SQLException e) {
-                    ui.error("SQL error occurred while trying to store log this transaction. The balance of the account has been updated.");
-                    return;
+                    ui.endTransaction(String.format("Withdrew %d from RFID '%s'. New balance: %d", amount, currentUser.getRfid(), new_balance));
                 }
 
                 resetCurrentInfo();
@@ -712,10 +885,47 @@ public class POS {
         }
     }
 
+    /**
+     * Shows a page of transactions oldest first. Pages come from the database newest first.
+     *
+     * @param transactions Transactions, newest first
+     */
+    private void showTransactions(List<Transaction> transactions) {
+        RowVisitor<Transaction> pager = ui.showTransactions();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            if (!pager.visit(transactions.get(i))) return;
+        }
+        pager.done();
+    }
+
+    /**
+     * Shows all users, a query at a time. The pager may wait for the user between rows, so each page is
+     * read in full, closing its query, before it is handed over.
+     *
+     * @throws SQLException if a page could not be read
+     */
+    private void showAllUsers() throws SQLException {
+        RowVisitor<User> pager = ui.showUsers();
+        List<User> users = db.getUsersAfter(null, USERS_PER_QUERY);
+        while (true) {
+            for (User user : users) {
+                if (!pager.visit(user)) return;
+            }
+            if (users.size() < USERS_PER_QUERY) break;
+
+            users = db.getUsersAfter(users.get(users.size() - 1), USERS_PER_QUERY);
+        }
+        pager.done();
+    }
+
     /**
      * Exists the application with logging trigger.
      */
     private void exit_application() {
+        // Lets the database handler write anything it still holds, and the UI print what it has queued, before the process ends.
+        if (db != null) db.close();
+        if (ui != null) ui.close();
+
         logger.trace("Exited RFID POS application.");
         System.exit(0);
     }
@@ -734,38 +944,16 @@ public class POS {
      * @param s Input sting to be checked
      * @return true if the string matched the parameters for RFID.
      */
-    private boolean isRFID(String s) {
-        return s.matches("^[a-zA-Z0-9]{8,}$");
+    boolean isRFID(String s) {
+        return CardDecoder.RFID.matches(s);
     }
 
-    private boolean isECC(String s) {
-        return s.matches("\\d{6}");
+    boolean isECC(String s) {
+        return CardDecoder.ECC.matches(s);
     }
 
     public int ntnuChecksum(String rfid) {
-        int int_rfid;
-
-        try {
-            int_rfid = Integer.parseInt(rfid);
-        } catch (NumberFormatException e) {
-            return -1;
-        }
-
-        // Make sure 32 bits are allocated every time
-        String binary_rfid = StringUtils.leftPad(Integer.toBinaryString(int_rfid), 32, "0");
-
-        // Reverse every 8 bits
-        String checkSum = "";
-        checkSum += StringUtils.reverse(binary_rfid.substring(0,8));
-        checkSum += StringUtils.reverse(binary_rfid.substring(8,16));
-        checkSum += StringUtils.reverse(binary_rfid.substring(16, 24));
-        checkSum += StringUtils.reverse(binary_rfid.substring(24));
-
-        try {
-            return Integer.parseInt(checkSum, 2);
-        } catch (NumberFormatException e) {
-            return -1;
-        }
+        return NtnuChecksum.of(rfid);
     }
 
     public static void main(String[] args) {
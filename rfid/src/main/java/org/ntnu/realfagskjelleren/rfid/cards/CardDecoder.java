@@ -0,0 +1,52 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classifies input as one of the registered card formats.
+ *
+ * Formats are checked in the order they were registered, and the first one that matches decides
+ * the type. Registration is meant to happen at startup, before any input is classified.
+ *
+ * @author Håvard Slettvold
+ */
+public class CardDecoder {
+
+    public static final CardFormat RFID = new RfidFormat();
+    public static final CardFormat ECC = new EccFormat();
+
+    private final List<CardFormat> formats = new ArrayList<>();
+
+    /**
+     * @return Decoder for the RFIDs and ECCs the POS has always accepted
+     */
+    public static CardDecoder standard() {
+        CardDecoder decoder = new CardDecoder();
+        decoder.register(RFID);
+        decoder.register(ECC);
+        return decoder;
+    }
+
+    /**
+     * Adds a format, checked after the formats registered before it.
+     *
+     * @param format Format to add
+     */
+    public void register(CardFormat format) {
+        formats.add(format);
+    }
+
+    /**
+     * @param input Line of input
+     * @return Type of the first format the input matches, or null if it isn't a card number
+     */
+    public CardType classify(CharSequence input) {
+        for (int i = 0; i < formats.size(); i++) {
+            CardFormat format = formats.get(i);
+            if (format.matches(input)) return format.getType();
+        }
+
+        return null;
+    }
+}
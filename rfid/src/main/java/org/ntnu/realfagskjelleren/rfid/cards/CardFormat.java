@@ -0,0 +1,25 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+/**
+ * A format of card number that the POS accepts as input.
+ *
+ * Every line of input is checked against the registered formats before it is treated as an
+ * amount or a command, so implementations should check the input in a single pass without
+ * allocating anything.
+ *
+ * @author Håvard Slettvold
+ */
+public interface CardFormat {
+
+    /**
+     * @return What input of this format is used to look up
+     */
+    public CardType getType();
+
+    /**
+     * @param input Line of input
+     * @return true if the input is a card number of this format
+     */
+    public boolean matches(CharSequence input);
+
+}
@@ -0,0 +1,16 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+/**
+ * What a scanned or typed card number is used to look up.
+ *
+ * @author Håvard Slettvold
+ */
+public enum CardType {
+
+    // The string read from the card, users are looked up and created by it.
+    RFID,
+
+    // The six digit number printed for a user, used when a card can't be scanned.
+    ECC
+
+}
@@ -0,0 +1,28 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+/**
+ * ECCs are exactly 6 digits.
+ *
+ * @author Håvard Slettvold
+ */
+public class EccFormat implements CardFormat {
+
+    private static final int LENGTH = 6;
+
+    @Override
+    public CardType getType() {
+        return CardType.ECC;
+    }
+
+    @Override
+    public boolean matches(CharSequence input) {
+        if (input.length() != LENGTH) return false;
+
+        for (int i = 0; i < LENGTH; i++) {
+            char c = input.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+
+        return true;
+    }
+}
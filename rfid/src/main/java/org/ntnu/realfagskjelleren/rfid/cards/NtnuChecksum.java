@@ -0,0 +1,50 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+/**
+ * The check sum printed on NTNU cards is the RFID as a 32 bit integer with the bits of each
+ * byte reversed, while the bytes stay in place.
+ *
+ * @author Håvard Slettvold
+ */
+public class NtnuChecksum {
+
+    private NtnuChecksum() {
+    }
+
+    /**
+     * @param rfid RFID of a card
+     * @return The check sum, or -1 if the RFID isn't a 32 bit integer or the check sum doesn't fit in a positive one
+     */
+    public static int of(CharSequence rfid) {
+        int length = rfid.length();
+        if (length == 0) return -1;
+
+        int i = 0;
+        boolean negative = false;
+        char first = rfid.charAt(0);
+        if (first == '-' || first == '+') {
+            if (length == 1) return -1;
+            negative = first == '-';
+            i = 1;
+        }
+
+        // Accumulated as a negative number, which has room for Integer.MIN_VALUE.
+        long value = 0;
+        for (; i < length; i++) {
+            char c = rfid.charAt(i);
+            if (c < '0' || c > '9') return -1;
+
+            value = value * 10 - (c - '0');
+            if (value < Integer.MIN_VALUE) return -1;
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) return -1;
+            value = -value;
+        }
+
+        // Reversing all 32 bits also swaps the bytes around, reversing the bytes puts them back.
+        int checksum = Integer.reverseBytes(Integer.reverse((int) value));
+
+        return checksum < 0 ? -1 : checksum;
+    }
+}
@@ -0,0 +1,29 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+/**
+ * RFIDs are strings of letters a-z and digits, 8 characters or longer.
+ *
+ * @author Håvard Slettvold
+ */
+public class RfidFormat implements CardFormat {
+
+    private static final int MIN_LENGTH = 8;
+
+    @Override
+    public CardType getType() {
+        return CardType.RFID;
+    }
+
+    @Override
+    public boolean matches(CharSequence input) {
+        int length = input.length();
+        if (length < MIN_LENGTH) return false;
+
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')) return false;
+        }
+
+        return true;
+    }
+}
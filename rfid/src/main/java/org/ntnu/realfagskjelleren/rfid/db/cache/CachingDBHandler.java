@@ -0,0 +1,289 @@
+package org.ntnu.realfagskjelleren.rfid.db.cache;
+
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps recently used users in memory in front of another {@link DBHandler}.
+ *
+ * Users are looked up by RFID or ECC without a database round trip once they have been seen.
+ * Every write that changes a user goes to the database first and is then applied to the cached
+ * copy, so the cache stays in step with what this till has written. When the cache is full the
+ * least recently used user is dropped.
+ *
+ * Writes made by other clients of the same database are not seen. A card moved to a new RFID by
+ * another till would still be found by its old RFID here, and credit would be shown as it was. The
+ * cache is therefore off unless userCacheSize is set, and is meant for a till that is the only one
+ * writing to its database. Purchases are still checked against the balance in the database.
+ *
+ * @author Håvard Slettvold
+ */
+public class CachingDBHandler extends DelegatingDBHandler {
+
+    private final Map<Integer, CachedUser> usersById;
+    private final Map<String, Integer> idsByRfid = new HashMap<>();
+    private final Map<Integer, Integer> idsByEcc = new HashMap<>();
+
+    /**
+     * @param delegate DBHandler to cache users from
+     * @param maxUsers Maximum number of users kept in memory
+     */
+    public CachingDBHandler(DBHandler delegate, final int maxUsers) {
+        super(delegate);
+
+        usersById = new LinkedHashMap<Integer, CachedUser>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedUser> eldest) {
+                if (size() <= maxUsers) return false;
+
+                unindex(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public User getOrCreate(String rfid) throws SQLException {
+        User user = cachedByRfid(rfid);
+        if (user != null) return user;
+
+        user = delegate.getOrCreate(rfid);
+        if (user != null) put(user, 0);
+
+        return user;
+    }
+
+    @Override
+    public User getUser(int ecc) throws SQLException {
+        User user = cachedByEcc(ecc);
+        if (user != null) return user;
+
+        user = delegate.getUser(ecc);
+        if (user != null) put(user, ecc);
+
+        return user;
+    }
+
+    @Override
+    public boolean rfidExists(String rfid) throws SQLException {
+        return cachedByRfid(rfid) != null || delegate.rfidExists(rfid);
+    }
+
+    @Override
+    public boolean eccExists(int ecc) throws SQLException {
+        return cachedByEcc(ecc) != null || delegate.eccExists(ecc);
+    }
+
+    @Override
+    public void updateUserRfid(int user_id, String rfid) throws SQLException {
+        try {
+            delegate.updateUserRfid(user_id, rfid);
+        } finally {
+            // Dropped rather than changed, the cached user may already have been handed out to a caller.
+            invalidate(user_id);
+        }
+    }
+
+    @Override
+    public boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        // Both users change, so neither of the cached copies can be trusted afterwards.
+        invalidate(toUser);
+        invalidate(fromUser);
+
+        return delegate.mergeUser(toUser, fromUser);
+    }
+
+    @Override
+    public void deposit(String rfid, int value) throws SQLException {
+        try {
+            delegate.deposit(rfid, value);
+        } catch (SQLException ex) {
+            invalidate(rfid);
+            throw ex;
+        }
+
+        adjustCredit(rfid, value);
+    }
+
+    @Override
+    public void deduct(String rfid, int value) throws SQLException {
+        try {
+            delegate.deduct(rfid, value);
+        } catch (SQLException ex) {
+            invalidate(rfid);
+            throw ex;
+        }
+
+        adjustCredit(rfid, -value);
+    }
+
+    @Override
+    public int makeDeposit(User user, int value) throws SQLException {
+        int user_id = user.getId();
+        int new_balance;
+
+        try {
+            new_balance = delegate.makeDeposit(user, value);
+        } catch (SQLException ex) {
+            invalidate(user_id);
+            throw ex;
+        }
+
+        setCredit(user_id, new_balance);
+        return new_balance;
+    }
+
+    @Override
+    public int makePurchase(User user, int value) throws SQLException {
+        int user_id = user.getId();
+        int new_balance;
+
+        try {
+            new_balance = delegate.makePurchase(user, value);
+        } catch (SQLException ex) {
+            invalidate(user_id);
+            throw ex;
+        }
+
+        if (new_balance == -1) {
+            // The database disagreed with the cached balance, so fetch it again next time.
+            invalidate(user_id);
+        }
+        else {
+            setCredit(user_id, new_balance);
+        }
+
+        return new_balance;
+    }
+
+    @Override
+    public int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+        int new_balance;
+
+        try {
+            new_balance = delegate.replayTransaction(user_id, value, is_deposit, date);
+        } catch (SQLException ex) {
+            invalidate(user_id);
+            throw ex;
+        }
+
+        if (new_balance == Integer.MIN_VALUE) {
+            invalidate(user_id);
+        }
+        else {
+            setCredit(user_id, new_balance);
+        }
+
+        return new_balance;
+    }
+
+    @Override
+    public int pruneInactiveRFIDs() throws SQLException {
+        try {
+            return delegate.pruneInactiveRFIDs();
+        } finally {
+            clear();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> importUsers(List<User> users) throws SQLException {
+        try {
+            return delegate.importUsers(users);
+        } finally {
+            // Users that already existed have had credit added.
+            clear();
+        }
+    }
+
+    /* Cache bookkeeping */
+
+    private synchronized User cachedByRfid(String rfid) {
+        Integer id = idsByRfid.get(rfid);
+        if (id == null) return null;
+
+        return usersById.get(id).user;
+    }
+
+    private synchronized User cachedByEcc(int ecc) {
+        Integer id = idsByEcc.get(ecc);
+        if (id == null) return null;
+
+        return usersById.get(id).user;
+    }
+
+    /**
+     * Adds a user to the cache, replacing any older copy of it.
+     *
+     * @param user User to cache
+     * @param ecc ECC of the user, or 0 if it is not known
+     */
+    private synchronized void put(User user, int ecc) {
+        CachedUser previous = usersById.remove(user.getId());
+        if (previous != null) {
+            unindex(previous);
+            if (ecc == 0) ecc = previous.ecc;
+        }
+
+        usersById.put(user.getId(), new CachedUser(user, ecc));
+        idsByRfid.put(user.getRfid(), user.getId());
+        if (ecc != 0) idsByEcc.put(ecc, user.getId());
+    }
+
+    private synchronized void setCredit(int user_id, int credit) {
+        CachedUser cached = usersById.get(user_id);
+        if (cached == null) return;
+
+        User user = cached.user;
+        // last_used is updated by the database whenever the row changes, and so is the version of the credit.
+        cached.user = new User(user.getId(), user.getRfid(), user.isStaff(), credit, user.getCreated(), new Timestamp(System.currentTimeMillis()),
+                user.getVersion() + 1);
+    }
+
+    private synchronized void adjustCredit(String rfid, int change) {
+        Integer id = idsByRfid.get(rfid);
+        if (id == null) return;
+
+        setCredit(id, usersById.get(id).user.getCredit() + change);
+    }
+
+    private synchronized void invalidate(int user_id) {
+        CachedUser cached = usersById.remove(user_id);
+        if (cached != null) unindex(cached);
+    }
+
+    private synchronized void invalidate(String rfid) {
+        Integer id = idsByRfid.get(rfid);
+        if (id != null) invalidate(id);
+    }
+
+    private synchronized void clear() {
+        usersById.clear();
+        idsByRfid.clear();
+        idsByEcc.clear();
+    }
+
+    private void unindex(CachedUser cached) {
+        idsByRfid.remove(cached.user.getRfid());
+        if (cached.ecc != 0) idsByEcc.remove(cached.ecc);
+    }
+
+    private static class CachedUser {
+
+        private User user;
+        private final int ecc;
+
+        private CachedUser(User user, int ecc) {
+            this.user = user;
+            this.ecc = ecc;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.ntnu.realfagskjelleren.rfid.db.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers {@link DBHandler#getTopTenFromLastHours(int)} from memory in front of another {@link DBHandler}.
+ *
+ * Purchases are summed per user into one bucket per clock hour, kept in a ring that covers the
+ * horizon. The ring is seeded from the database once with {@link #seed()}, and afterwards every
+ * purchase made through this handler is added to the bucket of the current hour.
+ *
+ * A window of N hours is N buckets: the current clock hour and the N - 1 hours before it. It reaches
+ * back between N - 1 and N hours, depending on how far into the current hour it is. Windows longer
+ * than the horizon, and lookups before the ring is seeded, are passed on to the database.
+ *
+ * Purchases made by other clients of the same database are not seen, so the leaderboard is off unless
+ * leaderboardHours is set, and is meant for a till that is the only one selling from its database.
+ *
+ * @author Håvard Slettvold
+ */
+public class LeaderboardDBHandler extends DelegatingDBHandler {
+
+    private static Logger logger = LogManager.getLogger(LeaderboardDBHandler.class.getName());
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final int horizon;
+    private final long[] bucketHours;
+    private final List<Map<Integer, Integer>> buckets;
+    private final Map<Integer, String> rfids = new HashMap<>();
+    private boolean seeded = false;
+
+    /**
+     * @param delegate DBHandler to pass everything else on to
+     * @param horizon Longest window in hours that is answered from memory
+     */
+    public LeaderboardDBHandler(DBHandler delegate, int horizon) {
+        super(delegate);
+
+        this.horizon = horizon;
+        this.bucketHours = new long[horizon];
+        this.buckets = new ArrayList<>(horizon);
+        for (int i = 0; i < horizon; i++) {
+            buckets.add(new HashMap<Integer, Integer>());
+        }
+    }
+
+    /**
+     * Fills the buckets with the purchases in the database that are inside the horizon.
+     *
+     * @throws SQLException
+     */
+    public void seed() throws SQLException {
+        long start = System.currentTimeMillis();
+        final int[] count = new int[1];
+
+        delegate.visitTransactionsFromLastHours(horizon, new RowVisitor<Transaction>() {
+            @Override
+            public boolean visit(Transaction transaction) {
+                synchronized (LeaderboardDBHandler.this) {
+                    rfids.put(transaction.getUserid(), transaction.getRfid());
+                    if (!transaction.isDeposit()) {
+                        add(transaction.getDate().getTime(), transaction.getUserid(), transaction.getValue());
+                    }
+                }
+                count[0]++;
+                return true;
+            }
+
+            @Override
+            public void done() {
+                synchronized (LeaderboardDBHandler.this) {
+                    seeded = true;
+                }
+            }
+        });
+
+        logger.debug(MarkerManager.getMarker("db"), String.format("Seeded leaderboard with %d transactions in %d ms.",
+                count[0], System.currentTimeMillis() - start));
+    }
+
+    @Override
+    public List<String> getTopTenFromLastHours(int hours) throws SQLException {
+        List<String> topTen = topTen(hours);
+        if (topTen != null) return topTen;
+
+        return delegate.getTopTenFromLastHours(hours);
+    }
+
+    @Override
+    public User getOrCreate(String rfid) throws SQLException {
+        return remember(delegate.getOrCreate(rfid));
+    }
+
+    @Override
+    public User getUser(int ecc) throws SQLException {
+        return remember(delegate.getUser(ecc));
+    }
+
+    @Override
+    public void updateUserRfid(int user_id, String rfid) throws SQLException {
+        delegate.updateUserRfid(user_id, rfid);
+
+        synchronized (this) {
+            rfids.put(user_id, rfid);
+        }
+    }
+
+    @Override
+    public boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        boolean merged = delegate.mergeUser(toUser, fromUser);
+
+        synchronized (this) {
+            for (Map<Integer, Integer> bucket : buckets) {
+                Integer spent = bucket.remove(fromUser);
+                if (spent != null) increment(bucket, toUser, spent);
+            }
+            rfids.remove(fromUser);
+        }
+
+        return merged;
+    }
+
+    @Override
+    public int makePurchase(User user, int value) throws SQLException {
+        int new_balance = delegate.makePurchase(user, value);
+
+        if (new_balance != -1) {
+            synchronized (this) {
+                add(System.currentTimeMillis(), user.getId(), value);
+            }
+        }
+
+        return new_balance;
+    }
+
+    @Override
+    public void transaction(int user_id, int value, boolean is_deposit, int new_balance) throws SQLException {
+        delegate.transaction(user_id, value, is_deposit, new_balance);
+
+        if (!is_deposit) {
+            synchronized (this) {
+                add(System.currentTimeMillis(), user_id, value);
+            }
+        }
+    }
+
+    /**
+     * Sums the buckets inside the window and picks the ten highest spenders.
+     *
+     * @param hours Hours to include
+     * @return List of strings: "RFID|Amount", or null if the window can't be answered from memory
+     */
+    private synchronized List<String> topTen(int hours) {
+        if (!seeded || hours > horizon) return null;
+
+        long currentHour = System.currentTimeMillis() / HOUR;
+        final Map<Integer, Integer> totals = new HashMap<>();
+
+        for (long hour = currentHour - hours + 1; hour <= currentHour; hour++) {
+            int index = (int) (hour % bucketHours.length);
+            if (bucketHours[index] != hour) continue;
+
+            for (Map.Entry<Integer, Integer> entry : buckets.get(index).entrySet()) {
+                increment(totals, entry.getKey(), entry.getValue());
+            }
+        }
+
+        List<Integer> ids = new ArrayList<>(totals.keySet());
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return totals.get(b).compareTo(totals.get(a));
+            }
+        });
+
+        List<String> topTen = new ArrayList<>();
+        for (Integer id : ids.subList(0, Math.min(10, ids.size()))) {
+            String rfid = rfids.get(id);
+            // A user this handler has never seen the RFID of, let the database answer instead.
+            if (rfid == null) return null;
+
+            topTen.add(rfid +"|"+ totals.get(id));
+        }
+
+        return topTen;
+    }
+
+    /**
+     * Adds a purchase to the bucket of the hour it was made in. The bucket is emptied first if it
+     * still holds an hour that has left the horizon.
+     */
+    private void add(long time, int user_id, int value) {
+        long hour = time / HOUR;
+        int index = (int) (hour % bucketHours.length);
+
+        if (bucketHours[index] > hour) return;
+        if (bucketHours[index] < hour) {
+            buckets.get(index).clear();
+            bucketHours[index] = hour;
+        }
+
+        increment(buckets.get(index), user_id, value);
+    }
+
+    private synchronized User remember(User user) {
+        if (user != null) rfids.put(user.getId(), user.getRfid());
+        return user;
+    }
+
+    private static void increment(Map<Integer, Integer> map, int key, int value) {
+        Integer current = map.get(key);
+        map.put(key, current == null ? value : current + value);
+    }
+}
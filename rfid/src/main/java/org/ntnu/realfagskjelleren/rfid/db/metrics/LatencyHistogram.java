@@ -0,0 +1,109 @@
+package org.ntnu.realfagskjelleren.rfid.db.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds that can be recorded to from any number of threads
+ * without locking.
+ *
+ * Latencies are counted in buckets that double in width for every power of two, with each power
+ * of two split into {@link #SUB_BUCKETS} buckets. A percentile is reported as the upper bound of
+ * the bucket it falls in, which is at most 25% above the real value. The max is kept exactly.
+ *
+ * @author Håvard Slettvold
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any positive long.
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos Duration of the call in nanoseconds
+     * @param error true if the call failed
+     */
+    public void record(long nanos, boolean error) {
+        long micros = Math.max(0, nanos / 1000);
+
+        buckets.incrementAndGet(bucket(micros));
+        if (error) errors.incrementAndGet();
+
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) break;
+        }
+    }
+
+    /**
+     * @return Number of calls recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return Number of calls recorded as failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return Longest latency recorded in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Recording may go on while this runs, so the result is only as exact as a snapshot of a
+     * moving histogram can be.
+     *
+     * @param percentile Between 0 and 100
+     * @return Latency in microseconds that the given percentage of calls were at or below, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), getMax());
+        }
+
+        return getMax();
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
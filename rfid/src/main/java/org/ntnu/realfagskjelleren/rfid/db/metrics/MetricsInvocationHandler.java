@@ -0,0 +1,190 @@
+package org.ntnu.realfagskjelleren.rfid.db.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the latency of every call made to a {@link DBHandler}, per method.
+ *
+ * This is not a DBHandler itself. It hands out a proxy for the DBHandler it measures, see
+ * {@link #getDBHandler()}, so methods added to the interface are measured without changes here. A call counts as an error when it throws. A -1 or null
+ * returned to signal a missing user or too little credit is not an error.
+ *
+ * @author Håvard Slettvold
+ */
+public class MetricsInvocationHandler implements InvocationHandler {
+
+    private static Logger logger = LogManager.getLogger(MetricsInvocationHandler.class.getName());
+
+    private final DBHandler delegate;
+    private final DBHandler proxy;
+    private final ConcurrentMap<Method, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    /**
+     * @param delegate DBHandler to measure
+     */
+    public MetricsInvocationHandler(DBHandler delegate) {
+        this.delegate = delegate;
+        this.proxy = (DBHandler) Proxy.newProxyInstance(
+                DBHandler.class.getClassLoader(),
+                new Class<?>[]{DBHandler.class},
+                this
+        );
+    }
+
+    /**
+     * @return DBHandler to use in place of the measured one
+     */
+    public DBHandler getDBHandler() {
+        return proxy;
+    }
+
+    /**
+     * Logs the report every given number of minutes, and once more when the DBHandler is closed.
+     *
+     * @param minutes Minutes between each report
+     */
+    public synchronized void logEvery(int minutes) {
+        if (reporter != null) return;
+
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                log();
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return Histograms by method, for instance "getTransactions(int, int)", ordered by name
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        Map<String, LatencyHistogram> byName = new TreeMap<>();
+        for (Map.Entry<Method, LatencyHistogram> entry : histograms.entrySet()) {
+            byName.put(name(entry.getKey()), entry.getValue());
+        }
+
+        return byName;
+    }
+
+    /**
+     * Generates a table of the calls made so far. Latencies are in milliseconds.
+     *
+     * @return Rows for a table, as taken by {@link org.ntnu.realfagskjelleren.rfid.ui.model.UI#showTable(List)}
+     */
+    public List<String> report() {
+        List<String> tableData = new ArrayList<>();
+        tableData.add("Method | Calls | Errors | p50 | p99 | Max");
+        tableData.add("===");
+
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            tableData.add(String.format("%s|%d|%d|%s|%s|%s",
+                    entry.getKey(),
+                    histogram.getCount(),
+                    histogram.getErrors(),
+                    millis(histogram.getPercentile(50)),
+                    millis(histogram.getPercentile(99)),
+                    millis(histogram.getMax())
+            ));
+        }
+
+        return tableData;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "Measured[" + delegate + "]";
+            }
+        }
+
+        if (method.getName().equals("close")) {
+            stopReporter();
+        }
+
+        LatencyHistogram histogram = histograms.get(method);
+        if (histogram == null) {
+            histograms.putIfAbsent(method, new LatencyHistogram());
+            histogram = histograms.get(method);
+        }
+
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Object result = method.invoke(delegate, args);
+            error = false;
+            return result;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            histogram.record(System.nanoTime() - start, error);
+        }
+    }
+
+    private synchronized void stopReporter() {
+        if (reporter == null) return;
+
+        reporter.shutdownNow();
+        reporter = null;
+        log();
+    }
+
+    private void log() {
+        StringBuilder sb = new StringBuilder("Database calls since start (latencies in ms):");
+        for (String row : report()) {
+            if (row.equals("===")) continue;
+            sb.append(System.lineSeparator()).append("    ").append(row.replace("|", " | "));
+        }
+
+        logger.info(MarkerManager.getMarker("db"), sb.toString());
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static String name(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameters = method.getParameterTypes();
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(parameters[i].getSimpleName());
+        }
+
+        return sb.append(')').toString();
+    }
+}
@@ -3,13 +3,19 @@ package org.ntnu.realfagskjelleren.rfid.db.migrations;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
 import org.ntnu.realfagskjelleren.rfid.db.model.User;
 
 import java.sql.*;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Håvard Slettvold
@@ -18,9 +24,17 @@ public class ConvertDataFromRFID1 {
 
     private static Logger logger = LogManager.getLogger(ConvertDataFromRFID1.class.getName());
 
+    // Transactions written per commit.
+    private static final int CHUNK_SIZE = 1000;
+
     /**
      * Attempts to convert a DB form 1.0 format to the current format.
      *
+     * The old database only knows the current credit of each user, so the transactions are read
+     * twice. The first pass sums up the change in credit per user, which gives the balance each user
+     * started with. The second pass streams the transactions in the order they were made, keeping a
+     * running balance per user for new_balance, and writes them in chunks.
+     *
      * @return 0 = NIL, 1 = successful conversion, 2 = error
      */
     public static int convert(DBHandler db) {
@@ -34,94 +48,145 @@ public class ConvertDataFromRFID1 {
             return 2;
         }
 
-        String GET_USERS_QS =
-                "SELECT p.id AS id, p.credits AS credits, MIN(t.date) AS created " +
-                "FROM pos AS p " +
-                "LEFT JOIN transact AS t " +
-                "ON t.userid = p.id " +
-                "GROUP BY p.id " +
-                "ORDER BY t.date;";
-        try (Connection con = DriverManager.getConnection("jdbc:sqlite:pos.unread.db");
-             Statement st = con.createStatement();
-             ResultSet rs = st.executeQuery(GET_USERS_QS)) {
-
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String dateString;
-            Date date;
-            long time;
-            Timestamp created;
-
-            while (rs.next()) {
-                boolean has_created_date = false;
-                // Find the timestamp when the user was first used, i.e. created
-                dateString = rs.getString("created");
-                if (dateString != null) {
-                    date = dateFormat.parse(dateString);
-                    time = date.getTime();
-                    created = new Timestamp(time);
-                    has_created_date = db.create_user_from_previous_db(""+rs.getInt("id"), rs.getInt("credits"), created);
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long start = System.currentTimeMillis();
+
+        // Balance of each legacy user ID before its first transaction.
+        Map<Integer, Integer> balances = new HashMap<>();
+        Map<String, Integer> ids;
+        int transactionCount = 0;
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:pos.unread.db")) {
+
+            try (Statement st = con.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT userid, input FROM transact;")) {
+
+                while (rs.next()) {
+                    Integer change = balances.get(rs.getInt("userid"));
+                    balances.put(rs.getInt("userid"), (change == null ? 0 : change) + change(rs.getString("input")));
+                    transactionCount++;
+                }
+            }
+
+            String GET_USERS_QS =
+                    "SELECT p.id AS id, p.credits AS credits, MIN(t.date) AS created " +
+                    "FROM pos AS p " +
+                    "LEFT JOIN transact AS t " +
+                    "ON t.userid = p.id " +
+                    "GROUP BY p.id " +
+                    "ORDER BY t.date;";
+            List<User> users = new ArrayList<>();
+            Set<Integer> legacyIds = new HashSet<>();
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+
+            try (Statement st = con.createStatement();
+                 ResultSet rs = st.executeQuery(GET_USERS_QS)) {
+
+                while (rs.next()) {
+                    int id = rs.getInt("id");
+                    int credits = rs.getInt("credits");
+                    // The timestamp when the user was first used, i.e. created
+                    String created = rs.getString("created");
+
+                    users.add(new User(0, "" + id, false, credits, created == null ? now : parse(dateFormat, created), null));
+                    legacyIds.add(id);
+
+                    Integer change = balances.get(id);
+                    balances.put(id, credits - (change == null ? 0 : change));
                 }
+            }
 
-                if (!has_created_date) {
-                    User user = db.getOrCreate("" + rs.getInt("id"));
-                    db.deposit(user.getRfid(), rs.getInt("credits"));
+            // Transactions by users missing from the pos table get a user with no credit left.
+            for (Map.Entry<Integer, Integer> entry : balances.entrySet()) {
+                if (!legacyIds.contains(entry.getKey())) {
+                    users.add(new User(0, "" + entry.getKey(), false, 0, now, null));
+                    entry.setValue(-entry.getValue());
                 }
             }
+
+            ids = db.importUsers(users);
+            logger.info(String.format("Imported %d users in %d ms.", users.size(), System.currentTimeMillis() - start));
+            logger.trace("Imported users successfully.");
+
+            logger.trace("Attempting to import transactions..");
+            start = System.currentTimeMillis();
+            List<Transaction> chunk = new ArrayList<>(CHUNK_SIZE);
+            int imported = 0;
+
+            try (Statement st = con.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT userid, input, date FROM transact ORDER BY date, rowid;")) {
+
+                while (rs.next()) {
+                    int userid = rs.getInt("userid");
+                    String input = rs.getString("input");
+                    boolean is_deposit = input.startsWith("+");
+                    int value = Integer.parseInt(is_deposit ? input.substring(1) : input);
+                    int new_balance = balances.get(userid) + (is_deposit ? value : -value);
+                    balances.put(userid, new_balance);
+
+                    chunk.add(new Transaction(
+                            ids.get("" + userid),
+                            "" + userid,
+                            value,
+                            new_balance,
+                            is_deposit,
+                            parse(dateFormat, rs.getString("date"))
+                    ));
+
+                    if (chunk.size() == CHUNK_SIZE) {
+                        db.importTransactions(chunk);
+                        imported += chunk.size();
+                        chunk.clear();
+                        logProgress(imported, transactionCount, start);
+                    }
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                db.importTransactions(chunk);
+                imported += chunk.size();
+                logProgress(imported, transactionCount, start);
+            }
         } catch (SQLException e) {
-            logger.error("Something went wrong while importing users.");
+            logger.error("Something went wrong while importing.");
             logger.error(e.getMessage(), e.getCause());
             return 2;
         } catch (ParseException e) {
-            logger.error("Something went wrong while importing transactions.");
+            logger.error("Failed to parse date.");
             logger.error(e.getMessage(), e.getCause());
             return 2;
         }
-        logger.trace("Imported users successfully.");
-
-        logger.trace("Attempting to import transactions..");
-        try (Connection con = DriverManager.getConnection("jdbc:sqlite:pos.unread.db");
-             Statement st = con.createStatement();
-             ResultSet rs = st.executeQuery("SELECT * FROM transact;")) {
-
-            while (rs.next()) {
-                User user = db.getOrCreate("" + rs.getInt("userid"));
-
-                String input = rs.getString("input");
-                int value;
-                boolean is_deposit;
-                int new_balance;
-
-                if (input.startsWith("+")) {
-                    value = Integer.parseInt(input.substring(1));
-                    new_balance = user.getCredit() + value;
-                    is_deposit = true;
-                }
-                else {
-                    value = Integer.parseInt(input);
-                    new_balance = user.getCredit() - value;
-                    is_deposit = false;
-                }
-
-                DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        logger.trace("Imported transactions successfully.");
 
-                try {
-                    String dateString = rs.getString("date");
-                    Date date = dateFormat.parse(dateString);
-                    long time = date.getTime();
-                    db.transaction(user.getId(), value, is_deposit, new_balance, new Timestamp(time));
-                } catch (ParseException e) {
-                    logger.error("Failed to parse date.");
-                    return 2;
-                }
-            }
+        // Imported transactions bypass the purchase path, so the statistics have to be built afterwards.
+        try {
+            db.rebuildStatistics();
         } catch (SQLException e) {
-            logger.error("Something went wrong while importing transactions.");
+            logger.error("Something went wrong while rebuilding statistics after the import.");
             logger.error(e.getMessage(), e.getCause());
             return 2;
         }
-        logger.trace("Imported transactions successfully.");
 
         return 1;
     }
 
+    /**
+     * Deposits are stored as "+value" and purchases as "value".
+     *
+     * @return The change in credit
+     */
+    private static int change(String input) {
+        if (input.startsWith("+")) return Integer.parseInt(input.substring(1));
+        return -Integer.parseInt(input);
+    }
+
+    private static Timestamp parse(DateFormat dateFormat, String date) throws ParseException {
+        return new Timestamp(dateFormat.parse(date).getTime());
+    }
+
+    private static void logProgress(int imported, int total, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.info(String.format("Imported %d of %d transactions (%d per second).", imported, total, imported * 1000L / elapsed));
+    }
+
 }
@@ -0,0 +1,136 @@
+package org.ntnu.realfagskjelleren.rfid.db.migrations;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A single step in the database schema history.
+ *
+ * Statements are written in MySQL dialect. The checksum is recorded next to the version when the
+ * migration is applied, so a migration that is changed after it has been run can be detected.
+ *
+ * A migration may have backfills, statements that fill new tables from the transaction log. They run
+ * after the statements, one range of transaction dates at a time, so no single statement holds locks
+ * on the whole log.
+ *
+ * A migration may have a check, a query for rows its statements would fail on. It is run first, and
+ * the migration is not applied while the check finds anything.
+ *
+ * @author Håvard Slettvold
+ */
+public class Migration {
+
+    private final String version;
+    private final String description;
+    private final List<String> statements;
+    private final List<String> backfills;
+    private final String check;
+    private final String checkFailure;
+
+    public Migration(String version, String description, String... statements) {
+        this(version, description, Collections.unmodifiableList(Arrays.asList(statements)), Collections.<String>emptyList(), null, null);
+    }
+
+    private Migration(String version, String description, List<String> statements, List<String> backfills, String check, String checkFailure) {
+        this.version = version;
+        this.description = description;
+        this.statements = statements;
+        this.backfills = backfills;
+        this.check = check;
+        this.checkFailure = checkFailure;
+    }
+
+    /**
+     * The check is not part of the checksum, so one can be added to a migration that has been released.
+     *
+     * @param check Query for rows the statements would fail on
+     * @param checkFailure What is wrong when the check finds rows, and how to fix it
+     * @return This migration with the check
+     */
+    public Migration checkedBy(String check, String checkFailure) {
+        return new Migration(version, description, statements, backfills, check, checkFailure);
+    }
+
+    /**
+     * @param backfills Statements with two parameters, the first transaction date to include and the
+     *                  first to leave out. Each range is added to what earlier ranges wrote.
+     * @return This migration with the backfills
+     */
+    public Migration backfilledBy(String... backfills) {
+        return new Migration(version, description, statements, Collections.unmodifiableList(Arrays.asList(backfills)), check, checkFailure);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public List<String> getBackfills() {
+        return backfills;
+    }
+
+    /**
+     * @return Query for rows the statements would fail on, or null if the migration has no check
+     */
+    public String getCheck() {
+        return check;
+    }
+
+    public String getCheckFailure() {
+        return checkFailure;
+    }
+
+    /**
+     * @return CRC32 of the version, statements and backfills as 8 hex characters
+     */
+    public String getChecksum() {
+        CRC32 crc = new CRC32();
+        Charset utf8 = Charset.forName("UTF-8");
+
+        crc.update(version.getBytes(utf8));
+        for (String statement : statements) {
+            crc.update('\n');
+            crc.update(statement.getBytes(utf8));
+        }
+        for (String backfill : backfills) {
+            crc.update('\n');
+            crc.update(backfill.getBytes(utf8));
+        }
+
+        return String.format("%08x", crc.getValue());
+    }
+
+    /**
+     * Compares two dotted version numbers part by part, so "2.10" is newer than "2.9".
+     *
+     * @return negative, zero or positive as a is older than, equal to or newer than b
+     */
+    public static int compareVersions(String a, String b) {
+        String[] aParts = a.split("\\.");
+        String[] bParts = b.split("\\.");
+
+        for (int i = 0; i < Math.max(aParts.length, bParts.length); i++) {
+            int aPart = i < aParts.length ? Integer.parseInt(aParts[i]) : 0;
+            int bPart = i < bParts.length ? Integer.parseInt(bParts[i]) : 0;
+
+            if (aPart != bPart) return aPart < bPart ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return version + " (" + description + ")";
+    }
+}
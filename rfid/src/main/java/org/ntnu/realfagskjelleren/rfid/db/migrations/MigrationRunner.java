@@ -0,0 +1,156 @@
+package org.ntnu.realfagskjelleren.rfid.db.migrations;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.Version;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings the database schema up to date by applying migrations in order.
+ *
+ * Every applied migration is recorded in the version table with its checksum. Migrations older
+ * than the current version without a recorded checksum were applied before checksums existed,
+ * and are skipped.
+ *
+ * @author Håvard Slettvold
+ */
+public class MigrationRunner {
+
+    private static Logger logger = LogManager.getLogger(MigrationRunner.class.getName());
+
+    /**
+     * All migrations, oldest first. Never change a migration that has been released, add a new one instead.
+     */
+    public static List<Migration> migrations() {
+        return Arrays.asList(
+                new Migration("2.1", "Release 2.1"),
+                new Migration("2.2", "Unique index on user.ecc",
+                        "CREATE UNIQUE INDEX ecc_ind ON user (ecc)"
+                ).checkedBy(
+                        "SELECT ecc, id, rfid, credit, last_used FROM user " +
+                        "WHERE ecc IN (SELECT ecc FROM user GROUP BY ecc HAVING COUNT(*) > 1) " +
+                        "ORDER BY ecc, id",
+                        "The users below share an ECC, so the unique index on user.ecc can't be made. An ECC is " +
+                        "printed on a single card, so find out which of the users has the card, and give the others " +
+                        "an ECC no one has with UPDATE user SET ecc = <new ecc> WHERE id = <id>. Then start the " +
+                        "program again. Users that turn out to be the same person can be merged with /merge after."
+                ),
+                new Migration("2.3", "Index on transaction.date",
+                        "CREATE INDEX date_ind ON transaction (date)"
+                ),
+                new Migration("2.4", "Composite index on transaction (user_id, id)",
+                        "CREATE INDEX user_id_ind ON transaction (user_id, id)",
+                        // The composite index covers the foreign key, so the old one is redundant.
+                        "DROP INDEX user_ind ON transaction"
+                ),
+                new Migration("2.5", "Daily and hourly sales rollup tables",
+                        "CREATE TABLE IF NOT EXISTS `sales_daily` (" +
+                        "  `day` date NOT NULL," +
+                        "  `sales` int(11) NOT NULL DEFAULT '0'," +
+                        "  PRIMARY KEY (`day`)," +
+                        "  INDEX sales_ind (sales)" +
+                        ") ENGINE=InnoDB  DEFAULT CHARSET=latin1",
+                        "CREATE TABLE IF NOT EXISTS `sales_hourly` (" +
+                        "  `hour` datetime NOT NULL," +
+                        "  `sales` int(11) NOT NULL DEFAULT '0'," +
+                        "  PRIMARY KEY (`hour`)" +
+                        ") ENGINE=InnoDB  DEFAULT CHARSET=latin1",
+                        // Emptied first, so a rerun after a failure does not trip over half a backfill.
+                        "DELETE FROM sales_daily",
+                        "DELETE FROM sales_hourly"
+                ).backfilledBy(
+                        // A sales day starts at 09:00, so one can span two ranges and is added to.
+                        "INSERT INTO sales_daily (day, sales) " +
+                        "SELECT DATE(date - INTERVAL 9 HOUR), SUM(value) FROM transaction " +
+                        "WHERE is_deposit != 1 AND value < 1000 AND date >= ? AND date < ? " +
+                        "GROUP BY DATE(date - INTERVAL 9 HOUR) " +
+                        "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales)",
+                        "INSERT INTO sales_hourly (hour, sales) " +
+                        "SELECT DATE_FORMAT(date, '%Y-%m-%d %H:00:00'), SUM(value) FROM transaction " +
+                        "WHERE is_deposit != 1 AND value < 1000 AND date >= ? AND date < ? " +
+                        "GROUP BY DATE_FORMAT(date, '%Y-%m-%d %H:00:00') " +
+                        "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales)"
+                ),
+                new Migration("2.6", "Lifetime spending counter on user",
+                        "ALTER TABLE user ADD COLUMN lifetime_spent int(11) NOT NULL DEFAULT '0'",
+                        // last_used updates itself on any change to the row, so it is set to itself to keep it.
+                        "UPDATE user AS u " +
+                        "INNER JOIN (" +
+                        "  SELECT user_id, SUM(value) AS spent FROM transaction " +
+                        "  WHERE is_deposit != 1 AND value < 1000 " +
+                        "  GROUP BY user_id" +
+                        ") AS s ON s.user_id = u.id " +
+                        "SET u.lifetime_spent = s.spent, u.last_used = u.last_used",
+                        "CREATE INDEX lifetime_spent_ind ON user (lifetime_spent)"
+                ),
+                new Migration("2.7", "Version counter on user credit",
+                        "ALTER TABLE user ADD COLUMN version int(11) NOT NULL DEFAULT '0'"
+                )
+        );
+    }
+
+    /**
+     * Applies all migrations newer than the current database version.
+     *
+     * @param db DBHandler to migrate
+     * @return true if the database is up to date
+     */
+    public static boolean run(DBHandler db) {
+        return run(db, migrations());
+    }
+
+    /**
+     * Applies the given migrations that are newer than the current database version, in the order given.
+     *
+     * @param db DBHandler to migrate
+     * @param migrations Migrations to apply, oldest first
+     * @return true if the database is up to date
+     */
+    public static boolean run(DBHandler db, List<Migration> migrations) {
+        List<Version> history = db.getVersionHistory();
+
+        if (history == null || history.isEmpty()) {
+            logger.error("Could not read the version history of the database.");
+            return false;
+        }
+
+        Map<String, String> checksums = new HashMap<>();
+        for (Version version : history) {
+            if (version.getChecksum() != null) checksums.put(version.getVersion(), version.getChecksum());
+        }
+        String current = history.get(history.size() - 1).getVersion();
+
+        for (Migration migration : migrations) {
+            String recorded = checksums.get(migration.getVersion());
+
+            if (recorded != null) {
+                if (!recorded.equals(migration.getChecksum())) {
+                    logger.error(String.format("Migration %s has checksum %s, but %s was recorded when it was applied.",
+                            migration, migration.getChecksum(), recorded));
+                    return false;
+                }
+                continue;
+            }
+
+            if (Migration.compareVersions(migration.getVersion(), current) <= 0) continue;
+
+            logger.info("Applying migration " + migration + ".");
+            long start = System.currentTimeMillis();
+
+            if (!db.applyMigration(migration)) {
+                logger.error("Migration " + migration + " failed.");
+                return false;
+            }
+
+            logger.info(String.format("Applied migration %s in %d ms.", migration, System.currentTimeMillis() - start));
+            current = migration.getVersion();
+        }
+
+        return true;
+    }
+}
@@ -1,8 +1,11 @@
 package org.ntnu.realfagskjelleren.rfid.db.model;
 
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
+
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Håvard Slettvold
@@ -13,6 +16,9 @@ public interface DBHandler {
     public boolean createDatabase();
     public Version getVersion();
     public boolean setVersion(String version);
+    public List<Version> getVersionHistory();
+    public boolean applyMigration(Migration migration);
+    public void close();
 
     public User getOrCreate(String rfid) throws SQLException;
     public User getUser(int ecc) throws SQLException;
@@ -24,24 +30,44 @@ public interface DBHandler {
     public void deposit(String rfid, int value) throws SQLException;
     public void deduct(String rfid, int value) throws SQLException;
 
+    // Balance update and transaction log row in a single database transaction. The credit and version the
+    // user was read with are the first guess for the update, a user changed since then only costs a retry.
+    public int makeDeposit(User user, int value) throws SQLException;
+    public int makePurchase(User user, int value) throws SQLException;
+    // A deposit or purchase made while the database was offline, written like makeDeposit and makePurchase
+    // but dated when it was made. Purchases are written even if the balance goes below zero, as the goods
+    // have been handed over already. Returns Integer.MIN_VALUE if the user doesn't exist, as a balance may be -1.
+    public int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException;
+
     public List<User> getAllUsers() throws SQLException;
+    // Page of users in order of last use, following the given user, or from the first user if it is null.
+    public List<User> getUsersAfter(User user, int amount) throws SQLException;
     public int getTotalValue() throws SQLException;
     public int getUserCount() throws SQLException;
     public List<Transaction> getTransactions(int amount) throws SQLException;
     public List<Transaction> getTransactions(int user_id, int amount) throws SQLException;
+    // Pages of transactions, newest first, on either side of the transaction with the given id.
+    public List<Transaction> getTransactionsBefore(int id, int amount) throws SQLException;
+    public List<Transaction> getTransactionsBefore(int user_id, int id, int amount) throws SQLException;
+    public List<Transaction> getTransactionsAfter(int id, int amount) throws SQLException;
+    public List<Transaction> getTransactionsAfter(int user_id, int id, int amount) throws SQLException;
     public List<Transaction> getTransactionsFromLastHours(int hours) throws SQLException;
 
+    // Streaming variant of getTransactionsFromLastHours.
+    public void visitTransactionsFromLastHours(int hours, RowVisitor<Transaction> visitor) throws SQLException;
+
     public String getSalesForDate(String date) throws SQLException;
     public List<String> topDays() throws SQLException;
     public int totalSpendings(String rfid) throws SQLException;
     public List<String> getTopTen() throws SQLException;
     public List<String> getTopTenFromLastHours(int hours) throws SQLException;
+    public void rebuildStatistics() throws SQLException;
 
     public void transaction(int user_id, int value, boolean is_deposit, int new_balance) throws SQLException;
 
     public int pruneInactiveRFIDs() throws SQLException;
 
     // Only meant to be used with the import of old sqlite DBs. Remove this when it is no longer needed.
-    public boolean create_user_from_previous_db(String rfid, int credit, Timestamp created) throws SQLException;
-    public void transaction(int user_id, int value, boolean is_deposit, int new_balance, Timestamp timestamp) throws SQLException;
+    public Map<String, Integer> importUsers(List<User> users) throws SQLException;
+    public void importTransactions(List<Transaction> transactions) throws SQLException;
 }
@@ -0,0 +1,225 @@
+package org.ntnu.realfagskjelleren.rfid.db.model;
+
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DBHandler} that passes every call on to another DBHandler.
+ *
+ * Handlers that add behaviour on top of an existing implementation, like caching, extend this
+ * class and only override the methods they care about.
+ *
+ * @author Håvard Slettvold
+ */
+public abstract class DelegatingDBHandler implements DBHandler {
+
+    protected final DBHandler delegate;
+
+    public DelegatingDBHandler(DBHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean testConnection() {
+        return delegate.testConnection();
+    }
+
+    @Override
+    public boolean createDatabase() {
+        return delegate.createDatabase();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public Version getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public boolean setVersion(String version) {
+        return delegate.setVersion(version);
+    }
+
+    @Override
+    public List<Version> getVersionHistory() {
+        return delegate.getVersionHistory();
+    }
+
+    @Override
+    public boolean applyMigration(Migration migration) {
+        return delegate.applyMigration(migration);
+    }
+
+    @Override
+    public User getOrCreate(String rfid) throws SQLException {
+        return delegate.getOrCreate(rfid);
+    }
+
+    @Override
+    public User getUser(int ecc) throws SQLException {
+        return delegate.getUser(ecc);
+    }
+
+    @Override
+    public void updateUserRfid(int user_id, String rfid) throws SQLException {
+        delegate.updateUserRfid(user_id, rfid);
+    }
+
+    @Override
+    public boolean rfidExists(String rfid) throws SQLException {
+        return delegate.rfidExists(rfid);
+    }
+
+    @Override
+    public boolean eccExists(int ecc) throws SQLException {
+        return delegate.eccExists(ecc);
+    }
+
+    @Override
+    public boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        return delegate.mergeUser(toUser, fromUser);
+    }
+
+    @Override
+    public void deposit(String rfid, int value) throws SQLException {
+        delegate.deposit(rfid, value);
+    }
+
+    @Override
+    public void deduct(String rfid, int value) throws SQLException {
+        delegate.deduct(rfid, value);
+    }
+
+    @Override
+    public int makeDeposit(User user, int value) throws SQLException {
+        return delegate.makeDeposit(user, value);
+    }
+
+    @Override
+    public int makePurchase(User user, int value) throws SQLException {
+        return delegate.makePurchase(user, value);
+    }
+
+    @Override
+    public int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+        return delegate.replayTransaction(user_id, value, is_deposit, date);
+    }
+
+    @Override
+    public List<User> getAllUsers() throws SQLException {
+        return delegate.getAllUsers();
+    }
+
+    @Override
+    public List<User> getUsersAfter(User user, int amount) throws SQLException {
+        return delegate.getUsersAfter(user, amount);
+    }
+
+    @Override
+    public int getTotalValue() throws SQLException {
+        return delegate.getTotalValue();
+    }
+
+    @Override
+    public int getUserCount() throws SQLException {
+        return delegate.getUserCount();
+    }
+
+    @Override
+    public List<Transaction> getTransactions(int amount) throws SQLException {
+        return delegate.getTransactions(amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactions(int user_id, int amount) throws SQLException {
+        return delegate.getTransactions(user_id, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsBefore(int id, int amount) throws SQLException {
+        return delegate.getTransactionsBefore(id, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsBefore(int user_id, int id, int amount) throws SQLException {
+        return delegate.getTransactionsBefore(user_id, id, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsAfter(int id, int amount) throws SQLException {
+        return delegate.getTransactionsAfter(id, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsAfter(int user_id, int id, int amount) throws SQLException {
+        return delegate.getTransactionsAfter(user_id, id, amount);
+    }
+
+    @Override
+    public List<Transaction> getTransactionsFromLastHours(int hours) throws SQLException {
+        return delegate.getTransactionsFromLastHours(hours);
+    }
+
+    @Override
+    public void visitTransactionsFromLastHours(int hours, RowVisitor<Transaction> visitor) throws SQLException {
+        delegate.visitTransactionsFromLastHours(hours, visitor);
+    }
+
+    @Override
+    public String getSalesForDate(String date) throws SQLException {
+        return delegate.getSalesForDate(date);
+    }
+
+    @Override
+    public List<String> topDays() throws SQLException {
+        return delegate.topDays();
+    }
+
+    @Override
+    public int totalSpendings(String rfid) throws SQLException {
+        return delegate.totalSpendings(rfid);
+    }
+
+    @Override
+    public List<String> getTopTen() throws SQLException {
+        return delegate.getTopTen();
+    }
+
+    @Override
+    public List<String> getTopTenFromLastHours(int hours) throws SQLException {
+        return delegate.getTopTenFromLastHours(hours);
+    }
+
+    @Override
+    public void rebuildStatistics() throws SQLException {
+        delegate.rebuildStatistics();
+    }
+
+    @Override
+    public void transaction(int user_id, int value, boolean is_deposit, int new_balance) throws SQLException {
+        delegate.transaction(user_id, value, is_deposit, new_balance);
+    }
+
+    @Override
+    public int pruneInactiveRFIDs() throws SQLException {
+        return delegate.pruneInactiveRFIDs();
+    }
+
+    @Override
+    public Map<String, Integer> importUsers(List<User> users) throws SQLException {
+        return delegate.importUsers(users);
+    }
+
+    @Override
+    public void importTransactions(List<Transaction> transactions) throws SQLException {
+        delegate.importTransactions(transactions);
+    }
+}
@@ -0,0 +1,28 @@
+package org.ntnu.realfagskjelleren.rfid.db.model;
+
+/**
+ * Receives the rows of a query one at a time, as they are read from the database.
+ *
+ * This is the streaming alternative to the methods on {@link DBHandler} that return lists. Only
+ * the row being visited has to be in memory, so a visitor over a large table uses the same
+ * amount of memory as one over a small table.
+ *
+ * @author Håvard Slettvold
+ */
+public interface RowVisitor<T> {
+
+    /**
+     * Called once per row, in the order of the query.
+     *
+     * @param row The current row
+     * @return false to stop reading rows
+     */
+    public boolean visit(T row);
+
+    /**
+     * Called after the last row, unless the visitor stopped early by returning false from
+     * {@link #visit(Object)}. Not called if the query fails.
+     */
+    public void done();
+
+}
@@ -7,6 +7,7 @@ import java.sql.Timestamp;
  */
 public class Transaction {
 
+    private int id;
     private int user_id;
     private int value;
     private int new_balance;
@@ -14,7 +15,15 @@ public class Transaction {
     private Timestamp date;
     private String rfid;
 
+    /**
+     * Creates a transaction that has not been written to the database yet, and so has no id.
+     */
     public Transaction(int user_id, String rfid, int value, int new_balance, boolean is_deposit, Timestamp date) {
+        this(0, user_id, rfid, value, new_balance, is_deposit, date);
+    }
+
+    public Transaction(int id, int user_id, String rfid, int value, int new_balance, boolean is_deposit, Timestamp date) {
+        this.id = id;
         this.user_id = user_id;
         this.rfid = rfid;
         this.value = value;
@@ -23,6 +32,10 @@ public class Transaction {
         this.date = date;
     }
 
+    public int getId() {
+        return id;
+    }
+
     public int getUserid() {
         return user_id;
     }
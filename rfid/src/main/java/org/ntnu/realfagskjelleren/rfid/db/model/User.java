@@ -14,14 +14,23 @@ public class User {
     private boolean isStaff;
     private Timestamp created;
     private Timestamp lastUsed;
+    private int version;
 
     public User(int id, String rfid, boolean isStaff, int credit, Timestamp created, Timestamp lastUsed) {
+        this(id, rfid, isStaff, credit, created, lastUsed, 0);
+    }
+
+    /**
+     * @param version Number of times the credit of the user has been changed, as read from the database
+     */
+    public User(int id, String rfid, boolean isStaff, int credit, Timestamp created, Timestamp lastUsed, int version) {
         this.id = id;
         this.rfid = rfid;
         this.isStaff = isStaff;
         this.credit = credit;
         this.created = created;
         this.lastUsed = lastUsed;
+        this.version = version;
     }
 
     public int getId() {
@@ -56,5 +65,15 @@ public class User {
         return lastUsed;
     }
 
+    /**
+     * Every change to the credit of a user increases the version by one, so a user read with the same
+     * version has the same credit.
+     *
+     * @return Version of the credit when the user was read
+     */
+    public int getVersion() {
+        return version;
+    }
+
 
 }
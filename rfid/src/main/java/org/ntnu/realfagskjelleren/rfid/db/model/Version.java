@@ -9,10 +9,16 @@ public class Version {
 
     private String version;
     private Timestamp executedOn;
+    private String checksum;
 
     public Version(String version, Timestamp executedOn) {
+        this(version, executedOn, null);
+    }
+
+    public Version(String version, Timestamp executedOn, String checksum) {
         this.version = version;
         this.executedOn = executedOn;
+        this.checksum = checksum;
     }
 
     public String getVersion() {
@@ -23,6 +29,13 @@ public class Version {
         return executedOn;
     }
 
+    /**
+     * @return Checksum of the migration that set this version, or null if it was not set by a migration
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
     @Override
     public String toString() {
         return this.version;
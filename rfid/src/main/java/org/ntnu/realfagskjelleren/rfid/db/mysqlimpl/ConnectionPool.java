@@ -0,0 +1,434 @@
+package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded pool of JDBC connections for the MySQL implementation.
+ *
+ * Connections handed out by the pool are proxies, so closing them returns the underlying
+ * connection to the pool instead of closing it. This lets {@link MySQLDBHandler} keep using
+ * try-with-resources exactly like it did when every call opened a fresh connection.
+ *
+ * Each pooled connection also keeps a cache of prepared statements keyed by their SQL. Closing a
+ * cached statement only clears its parameters, so the next call preparing the same SQL on that
+ * connection skips parsing and planning. Statements are handed out as proxies too, a new one for
+ * every checkout.
+ *
+ * @author Håvard Slettvold
+ */
+class ConnectionPool {
+
+    private static Logger logger = LogManager.getLogger(ConnectionPool.class.getName());
+
+    // Connections returned more recently than this are assumed to be valid on checkout.
+    private static final long VALIDATION_INTERVAL = 1000L;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long CHECKOUT_TIMEOUT = 10000L;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final long idleTimeout;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private long lastLoggedHits = 0;
+    private long lastLoggedMisses = 0;
+
+    /**
+     * @param url JDBC url of the database
+     * @param username Database username
+     * @param password Database password
+     * @param minSize Number of connections to keep open when idle
+     * @param maxSize Maximum number of connections open at any time
+     * @param idleTimeout Seconds a connection above minSize may stay idle before it is closed
+     */
+    ConnectionPool(String url, String username, String password, int minSize, int maxSize, int idleTimeout) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Pool sizes must satisfy 0 <= min <= max and max >= 1.");
+        }
+
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.idleTimeout = idleTimeout * 1000L;
+        this.permits = new Semaphore(maxSize, true);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "connection-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long interval = Math.max(1000L, this.idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks out a connection from the pool, opening a new one if no idle connection is available.
+     * Blocks while the pool is exhausted.
+     *
+     * @return Connection which is returned to the pool when closed
+     * @throws SQLException if no connection could be made or the pool stayed exhausted
+     */
+    Connection getConnection() throws SQLException {
+        try {
+            if (!permits.tryAcquire(CHECKOUT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection from the pool.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from the pool.", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isValid(pooled)) return pooled.lease();
+                discard(pooled);
+            }
+
+            return new PooledConnection(open()).lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of prepareStatement calls served from a statement cache
+     */
+    long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * @return Number of prepareStatement calls that had to prepare a new statement
+     */
+    long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * Closes all idle connections and stops the evictor. Connections currently checked out are
+     * closed when they are returned.
+     */
+    void close() {
+        evictor.shutdownNow();
+
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection con = DriverManager.getConnection(url, username, password);
+        openConnections.incrementAndGet();
+        return con;
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastReturned < VALIDATION_INTERVAL) return true;
+
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        openConnections.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            logger.debug(MarkerManager.getMarker("db"), "Failed to close pooled connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when a lease is closed. Connections that cannot be reset are discarded.
+     */
+    private void release(PooledConnection pooled) {
+        try {
+            if (evictor.isShutdown() || pooled.connection.isClosed()) {
+                discard(pooled);
+                return;
+            }
+
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+
+            pooled.lastReturned = System.currentTimeMillis();
+            // Most recently used first, so the connections at the tail are the ones allowed to go idle.
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout, as long as that does not
+     * take the pool below its minimum size, and then tops the pool back up to the minimum size.
+     */
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && openConnections.get() > minSize) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastReturned > idleTimeout && idle.removeLastOccurrence(pooled)) {
+                discard(pooled);
+            }
+        }
+
+        while (openConnections.get() < minSize) {
+            try {
+                PooledConnection pooled = new PooledConnection(open());
+                pooled.lastReturned = now;
+                idle.offerLast(pooled);
+            } catch (SQLException e) {
+                logger.debug(MarkerManager.getMarker("db"), "Could not top up connection pool: " + e.getMessage());
+                break;
+            }
+        }
+
+        long hits = statementCacheHits.get();
+        long misses = statementCacheMisses.get();
+        if (hits != lastLoggedHits || misses != lastLoggedMisses) {
+            logger.debug(MarkerManager.getMarker("db"), String.format("Statement cache: %d hits, %d misses.", hits, misses));
+            lastLoggedHits = hits;
+            lastLoggedMisses = misses;
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private class PooledConnection {
+
+        private final Connection connection;
+        private volatile long lastReturned;
+
+        // Only touched by the thread holding the lease, so it needs no locking.
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) return false;
+
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the cached statement for the SQL if there is one that is not in use,
+         * otherwise prepares and caches a new one.
+         */
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+
+            if (cached != null && !cached.inUse) {
+                statementCacheHits.incrementAndGet();
+                return cached.checkout();
+            }
+
+            statementCacheMisses.incrementAndGet();
+            PreparedStatement statement = connection.prepareStatement(sql);
+
+            // The same SQL is already open on this connection, so this one is not cached.
+            if (cached != null) return statement;
+
+            cached = new CachedStatement(statement);
+            statements.put(sql, cached);
+            return cached.checkout();
+        }
+
+        /**
+         * Hands out a proxy for this connection. Each lease can only be closed once, so a stale
+         * reference cannot return the connection to the pool a second time.
+         */
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Lease(this)
+            );
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+
+        private PooledConnection pooled;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (pooled != null) {
+                        PooledConnection returning = pooled;
+                        pooled = null;
+                        release(returning);
+                    }
+                    return null;
+                case "isClosed":
+                    return pooled == null || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + (pooled == null ? "[closed]" : pooled.connection.toString());
+            }
+
+            if (pooled == null) throw new SQLException("Connection has been returned to the pool.");
+
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return pooled.prepareStatement((String) args[0]);
+            }
+
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * A prepared statement kept open in a connection's statement cache. Each checkout hands out a
+     * proxy of its own, and closing it clears the parameters and makes the statement available for
+     * reuse.
+     */
+    private static class CachedStatement {
+
+        private final PreparedStatement statement;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        private PreparedStatement checkout() {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new StatementLease(this)
+            );
+        }
+
+        private void checkin() throws SQLException {
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+            }
+            else {
+                statement.clearParameters();
+            }
+        }
+
+        /**
+         * Called when the statement is pushed out of the cache. It is closed as soon as it is not in use.
+         */
+        private void evict() {
+            evicted = true;
+            if (!inUse) closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.debug(MarkerManager.getMarker("db"), "Failed to close cached statement: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One checkout of a cached statement. Like a {@link Lease}, it can only be closed once, so a
+     * stale reference cannot hand back the statement while someone else holds it.
+     */
+    private static class StatementLease implements InvocationHandler {
+
+        private CachedStatement cached;
+
+        private StatementLease(CachedStatement cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (cached != null) {
+                        CachedStatement returning = cached;
+                        cached = null;
+                        returning.checkin();
+                    }
+                    return null;
+                case "isClosed":
+                    return cached == null || cached.statement.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+
+            if (cached == null) throw new SQLException("Statement has been closed.");
+
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hands out free ECC numbers without asking the database whether each candidate is taken.
+ *
+ * The ECCs in use are loaded once into a bitset with one bit per possible ECC, and every
+ * allocation marks its bit. Finding a free ECC is a scan for the next clear bit from a random
+ * starting point, which stays fast until nearly all 900000 numbers are used.
+ *
+ * Other clients of the same database can still take an ECC this allocator considers free, so
+ * the database should keep a unique index on the ecc column as the final guard.
+ *
+ * @author Håvard Slettvold
+ */
+public class EccAllocator {
+
+    public static final int MIN_ECC = 100000;
+    public static final int MAX_ECC = 999999;
+
+    private static final int SIZE = MAX_ECC - MIN_ECC + 1;
+
+    private final BitSet used = new BitSet(SIZE);
+    private final Random random;
+    private boolean loaded = false;
+
+    public EccAllocator() {
+        this(new Random());
+    }
+
+    /**
+     * @param random Source of the starting points of the searches for a free ECC
+     */
+    EccAllocator(Random random) {
+        this.random = random;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Marks every ECC stored in the user table as used.
+     *
+     * @param con Connection to read the user table from
+     * @throws SQLException
+     */
+    public synchronized void load(Connection con) throws SQLException {
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("SELECT ecc FROM user;")) {
+
+            while (rs.next()) {
+                markUsed(rs.getInt(1));
+            }
+        }
+
+        loaded = true;
+    }
+
+    /**
+     * Picks a random free ECC and marks it as used.
+     *
+     * @return ECC number, or -1 if every ECC is in use
+     */
+    public synchronized int allocate() {
+        int index = used.nextClearBit(random.nextInt(SIZE));
+        if (index >= SIZE) index = used.nextClearBit(0);
+        if (index >= SIZE) return -1;
+
+        used.set(index);
+        return MIN_ECC + index;
+    }
+
+    /**
+     * Marks an ECC as used, for instance when another client was found to have taken it.
+     *
+     * @param ecc ECC number
+     */
+    public synchronized void markUsed(int ecc) {
+        if (ecc >= MIN_ECC && ecc <= MAX_ECC) used.set(ecc - MIN_ECC);
+    }
+
+    /**
+     * Makes an ECC available again, for instance when the user it was allocated for was never stored.
+     *
+     * @param ecc ECC number
+     */
+    public synchronized void release(int ecc) {
+        if (ecc >= MIN_ECC && ecc <= MAX_ECC) used.clear(ecc - MIN_ECC);
+    }
+}
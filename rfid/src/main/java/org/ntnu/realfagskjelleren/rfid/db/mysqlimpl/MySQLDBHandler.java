@@ -3,7 +3,9 @@ package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
 import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
 import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
 import org.ntnu.realfagskjelleren.rfid.db.model.User;
 import org.ntnu.realfagskjelleren.rfid.db.model.Version;
@@ -11,8 +13,14 @@ import org.ntnu.realfagskjelleren.rfid.settings.Settings;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Implementation of DBHandler for MySQL.
@@ -23,10 +31,60 @@ public class MySQLDBHandler implements DBHandler {
 
     private static Logger logger = LogManager.getLogger(MySQLDBHandler.class.getName());
 
+    // MySQL error codes for a violated unique constraint and for adding a column that already exists.
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final int ER_DUP_FIELDNAME = 1060;
+    // Syntax error (ALGORITHM and LOCK before 5.6), and the change not being possible in place or without locks.
+    private static final List<Integer> ONLINE_DDL_UNSUPPORTED = Arrays.asList(1064, 1845, 1846);
+
+    // Matches "CREATE [UNIQUE] INDEX name ON table ..." and "DROP INDEX name ON table".
+    private static final Pattern INDEX_DDL = Pattern.compile("(CREATE\\s+(?:UNIQUE\\s+)?INDEX|DROP\\s+INDEX)\\s+(\\w+)\\s+ON\\s+(\\w+).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // Users written per commit when importing.
+    private static final int IMPORT_CHUNK_SIZE = 500;
+
+    // Days of transactions read per statement when a migration backfills from the transaction log.
+    private static final int BACKFILL_DAYS = 7;
+
+    // Times a change of credit is tried before giving up because other tills keep changing the same user.
+    private static final int CREDIT_UPDATE_ATTEMPTS = 5;
+
     private Settings settings;
+    private ConnectionPool pool;
+    private StatementTracer tracer;
+    private EccAllocator eccAllocator = new EccAllocator();
 
-    public MySQLDBHandler(Settings settings) {
+    /**
+     * @param settings Settings with database connection details
+     * @throws NumberFormatException if the connection pool or slow query settings are not integers
+     */
+    public MySQLDBHandler(Settings settings) throws NumberFormatException {
         this.settings = settings;
+
+        // Server side prepared statements pair with the statement cache in the pool, so statements are
+        // parsed and planned once per connection instead of once per call. Batches of inserts, used by
+        // the import, are sent as multi-row inserts.
+        // A short connect timeout lets an unreachable server be noticed quickly instead of after the OS gives up.
+        String url = String.format("jdbc:mysql://%s:%s/%s?useServerPrepStmts=true&rewriteBatchedStatements=true&connectTimeout=3000", settings.getDbHost(), settings.getDbPort(), settings.getDbName());
+        this.pool = new ConnectionPool(
+                url,
+                settings.getDbUsername(),
+                settings.getDbPassword(),
+                settings.getDbPoolMinSize(),
+                settings.getDbPoolMaxSize(),
+                settings.getDbPoolIdleTimeout()
+        );
+
+        StatementTracer tracer = new StatementTracer(settings.getSqlTracing(), settings.getSlowQueryThreshold());
+        if (tracer.isEnabled()) this.tracer = tracer;
+    }
+
+    /**
+     * Closes all connections.
+     */
+    @Override
+    public void close() {
+        pool.close();
     }
 
     public boolean testConnection() {
@@ -77,6 +135,7 @@ public class MySQLDBHandler implements DBHandler {
                 "  `id` int(11) NOT NULL AUTO_INCREMENT," +
                 "  `version` varchar(20) NOT NULL," +
                 "  `executed_on` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP," +
+                "  `checksum` varchar(8) NULL," +
                 "  PRIMARY KEY (`id`)" +
                 ") ENGINE=InnoDB  DEFAULT CHARSET=latin1;";
         String createLogSQL =
@@ -95,6 +154,8 @@ public class MySQLDBHandler implements DBHandler {
             st.executeUpdate(createVersionSQL);
             st.executeUpdate(createLogSQL);
 
+            ensureVersionChecksumColumn(con);
+
             success = true;
 
         } catch (SQLException ex) {
@@ -104,6 +165,28 @@ public class MySQLDBHandler implements DBHandler {
         return success;
     }
 
+    /**
+     * Migrations record their checksum in the version table. Databases created before migrations
+     * existed do not have that column yet.
+     *
+     * @param con Connection to the database
+     * @throws SQLException
+     */
+    private void ensureVersionChecksumColumn(Connection con) throws SQLException {
+        String CHECKSUM_COLUMN_EXISTS_QS = "SELECT COUNT(*) FROM information_schema.COLUMNS " +
+                                           "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'version' AND COLUMN_NAME = 'checksum';";
+
+        try (Statement st = con.createStatement()) {
+            try (ResultSet rs = st.executeQuery(CHECKSUM_COLUMN_EXISTS_QS)) {
+                rs.next();
+                if (rs.getInt(1) > 0) return;
+            }
+
+            logger.debug(MarkerManager.getMarker("db"), "Adding checksum column to the version table.");
+            st.executeUpdate("ALTER TABLE version ADD COLUMN checksum varchar(8) NULL;");
+        }
+    }
+
     /**
      * Finds the current version from the database.
      *
@@ -117,7 +200,7 @@ public class MySQLDBHandler implements DBHandler {
              ResultSet rs = st.executeQuery(GET_VERSION_QS)){
 
             if (rs.next()) {
-                return new Version(rs.getString("version"), rs.getTimestamp("executed_on"));
+                return new Version(rs.getString("version"), rs.getTimestamp("executed_on"), rs.getString("checksum"));
             }
 
         } catch (SQLException ex) {
@@ -128,6 +211,33 @@ public class MySQLDBHandler implements DBHandler {
         return null;
     }
 
+    /**
+     * Finds every version the database has been at, oldest first.
+     *
+     * @return List of versions, or null if they could not be read
+     */
+    @Override
+    public List<Version> getVersionHistory() {
+        List<Version> versions = new ArrayList<>();
+
+        String GET_VERSION_HISTORY_QS = "SELECT * FROM `version` ORDER BY id;";
+        try (Connection con = getConnection();
+             Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery(GET_VERSION_HISTORY_QS)){
+
+            while (rs.next()) {
+                versions.add(new Version(rs.getString("version"), rs.getTimestamp("executed_on"), rs.getString("checksum")));
+            }
+
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "SQL error occurred while attempting to get version history.");
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+
+        return versions;
+    }
+
     /**
      * Inserts a version entry into the database.
      *
@@ -153,14 +263,226 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Makes a connection to the database.
+     * Runs the statements of a migration and records its version and checksum.
+     *
+     * Index changes are run as online DDL, so the tables stay readable and writable while the index
+     * is built. Index changes and added columns that already exist are skipped, which makes it safe
+     * to rerun a migration that failed halfway.
+     *
+     * The check of the migration, if it has one, is run first. Rows it finds are logged with what to do
+     * about them, and nothing is changed. Backfills are run last, {@link #BACKFILL_DAYS} days of the
+     * transaction log at a time, each committed on its own.
+     *
+     * Purchases made by other tills while a backfill runs may land in a range that is already done and
+     * be left out, so a migration with backfills should be run while no other till is selling.
+     *
+     * @param migration Migration to apply
+     * @return True if the migration was applied
+     */
+    @Override
+    public boolean applyMigration(Migration migration) {
+        String SET_VERSION_QS = "INSERT INTO version (version, checksum) VALUES (?, ?);";
+
+        try (Connection con = getConnection()) {
+            if (migration.getCheck() != null && !passesCheck(con, migration)) return false;
+
+            for (String statement : migration.getStatements()) {
+                executeOnline(con, statement);
+            }
+
+            if (!migration.getBackfills().isEmpty()) backfill(con, migration);
+
+            try (PreparedStatement ps = con.prepareStatement(SET_VERSION_QS)) {
+                ps.setString(1, migration.getVersion());
+                ps.setString(2, migration.getChecksum());
+                ps.executeUpdate();
+            }
+
+            return true;
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "SQL error occurred while applying migration " + migration + ".");
+            logger.error(ex.getMessage(), ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs the backfills of a migration over the transaction log, one range of dates at a time.
+     *
+     * @param con Connection to the database
+     * @param migration Migration with backfills
+     * @throws SQLException
+     */
+    private void backfill(Connection con, Migration migration) throws SQLException {
+        String DATE_RANGE_QS = "SELECT MIN(date), MAX(date) FROM transaction;";
+
+        Timestamp first;
+        Timestamp last;
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery(DATE_RANGE_QS)) {
+            rs.next();
+            first = rs.getTimestamp(1);
+            last = rs.getTimestamp(2);
+        }
+
+        // An empty log has nothing to backfill.
+        if (first == null) return;
+
+        long step = TimeUnit.DAYS.toMillis(BACKFILL_DAYS);
+        for (long from = first.getTime(); from <= last.getTime(); from += step) {
+            Timestamp start = new Timestamp(from);
+            Timestamp end = new Timestamp(from + step);
+
+            for (String backfill : migration.getBackfills()) {
+                try (PreparedStatement ps = con.prepareStatement(backfill)) {
+                    ps.setTimestamp(1, start);
+                    ps.setTimestamp(2, end);
+                    ps.executeUpdate();
+                }
+            }
+
+            logger.info(String.format("Migration %s backfilled transactions up to %s.", migration, end));
+        }
+    }
+
+    /**
+     * Runs the check of a migration and logs every row it finds.
+     *
+     * @param con Connection to the database
+     * @param migration Migration with a check
+     * @return true if the check found nothing
+     * @throws SQLException
+     */
+    private boolean passesCheck(Connection con, Migration migration) throws SQLException {
+        List<String> problems = new ArrayList<>();
+
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery(migration.getCheck())) {
+            ResultSetMetaData meta = rs.getMetaData();
+            while (rs.next()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    if (i > 1) row.append(", ");
+                    row.append(meta.getColumnLabel(i)).append(" = ").append(rs.getString(i));
+                }
+                problems.add(row.toString());
+            }
+        }
+
+        if (problems.isEmpty()) return true;
+
+        logger.error(MarkerManager.getMarker("db"), "Migration " + migration + " was not applied. " + migration.getCheckFailure());
+        for (String problem : problems) {
+            logger.error(MarkerManager.getMarker("db"), "    " + problem);
+        }
+
+        return false;
+    }
+
+    /**
+     * Executes a DDL statement, asking for an in-place change without locks if it alters a table or index.
+     * Servers older than MySQL 5.6 do not know the ALGORITHM and LOCK clauses, and some changes cannot be
+     * made in place. Those fall back to the plain statement.
+     *
+     * @param con Connection to the database
+     * @param statement Statement to execute
+     * @throws SQLException
+     */
+    private void executeOnline(Connection con, String statement) throws SQLException {
+        Matcher index = INDEX_DDL.matcher(statement);
+        boolean isIndexChange = index.matches();
+
+        try (Statement st = con.createStatement()) {
+            if (isIndexChange) {
+                String INDEX_EXISTS_QS = "SELECT COUNT(*) FROM information_schema.STATISTICS " +
+                                         "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ?;";
+                try (PreparedStatement ps = con.prepareStatement(INDEX_EXISTS_QS)) {
+                    ps.setString(1, index.group(3));
+                    ps.setString(2, index.group(2));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        boolean exists = rs.getInt(1) > 0;
+                        boolean creating = index.group(1).toUpperCase().startsWith("CREATE");
+
+                        if (exists == creating) {
+                            logger.debug(MarkerManager.getMarker("db"), "Skipping, already done: " + statement);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            String online = null;
+            if (isIndexChange) online = statement + " ALGORITHM=INPLACE LOCK=NONE";
+            else if (statement.toUpperCase().startsWith("ALTER TABLE")) online = statement + ", ALGORITHM=INPLACE, LOCK=NONE";
+
+            if (online != null) {
+                try {
+                    st.executeUpdate(online);
+                    return;
+                } catch (SQLException ex) {
+                    if (ex.getErrorCode() == ER_DUP_FIELDNAME) {
+                        logger.debug(MarkerManager.getMarker("db"), "Skipping, already done: " + statement);
+                        return;
+                    }
+                    if (!ONLINE_DDL_UNSUPPORTED.contains(ex.getErrorCode())) throw ex;
+
+                    logger.debug(MarkerManager.getMarker("db"), "Online DDL not available, running plain statement: " + ex.getMessage());
+                }
+            }
+
+            try {
+                st.executeUpdate(statement);
+            } catch (SQLException ex) {
+                if (ex.getErrorCode() != ER_DUP_FIELDNAME) throw ex;
+
+                logger.debug(MarkerManager.getMarker("db"), "Skipping, already done: " + statement);
+            }
+        }
+    }
+
+    /**
+     * @return Number of prepared statements that were reused from the statement cache
+     */
+    public long getStatementCacheHits() {
+        return pool.getStatementCacheHits();
+    }
+
+    /**
+     * @return Number of prepared statements that had to be prepared on the server
+     */
+    public long getStatementCacheMisses() {
+        return pool.getStatementCacheMisses();
+    }
+
+    /**
+     * Checks out a connection from the connection pool. Closing the connection returns it to the pool.
+     * When tracing or the slow query log is on, the statements made from it are traced.
      *
      * @return Connection to the database
      * @throws SQLException
      */
     private Connection getConnection() throws SQLException {
-        String url = String.format("jdbc:mysql://%s:%s/%s", settings.getDbHost(), settings.getDbPort(), settings.getDbName());
-        return DriverManager.getConnection(url, settings.getDbUsername(), settings.getDbPassword());
+        if (tracer == null) return pool.getConnection();
+
+        long start = System.nanoTime();
+        Connection con = pool.getConnection();
+        return tracer.trace(con, System.nanoTime() - start);
+    }
+
+    /**
+     * Prepares a statement whose results are streamed from the server row by row, instead of
+     * being read into memory in full by the driver when the query is executed.
+     *
+     * The connection can't run other statements until the result set is closed. Closing it early
+     * still reads the remaining rows off the connection, but without keeping them. The statement is
+     * not cached, as the fetch size would carry over to the other users of a cached statement.
+     */
+    private PreparedStatement prepareStreaming(Connection con, String sql) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(Integer.MIN_VALUE);
+        return ps;
     }
 
 
@@ -168,30 +490,76 @@ public class MySQLDBHandler implements DBHandler {
      * This method creates a {@link User} object based on database information.
      * If no user matches the given rfid, one will be created first.
      *
+     * Known cards cost a single lookup. New cards cost the lookup that finds nothing and one insert,
+     * relying on the unique constraint on rfid rather than a separate existence check. If another
+     * till registers the same card at the same time the insert fails with a duplicate key, and the
+     * row that till created is looked up and returned instead.
+     *
      * @param rfid Lookup parameter for a user
      * @return {@link User} object
      * @throws java.sql.SQLException
      */
     @Override
     public User getOrCreate(String rfid) throws SQLException {
+        String GET_USER_BY_RFID_QS = "SELECT * FROM user WHERE rfid = ?;";
+        String CREATE_USER_QS = "INSERT INTO user (credit, rfid, ecc, is_staff, created) VALUES (0, ?, ?, 0, ?);";
+
         try (Connection con = getConnection()) {
-            if (!rfidExists(rfid)) {
-                // If it doesn't exist, create
-                String CREATE_USER_QS = "INSERT INTO user (credit, rfid, ecc, is_staff, created) VALUES (0, ?, ?, 0, NOW());";
-                try (PreparedStatement ps = con.prepareStatement(CREATE_USER_QS)) {
+            try (PreparedStatement ps = con.prepareStatement(GET_USER_BY_RFID_QS)) {
+                ps.setString(1, rfid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        return new User(rs.getInt("id"), rs.getString("rfid"), rs.getBoolean("is_staff"), rs.getInt("credit"), rs.getTimestamp("created"), rs.getTimestamp("last_used"), rs.getInt("version"));
+                    }
+                }
+            }
+
+            // DATETIME has no fractional seconds, so drop them to match what is stored.
+            Timestamp created = new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+
+            // A duplicate key is either the RFID, registered by another till, or an ECC another till
+            // has just handed out. The ECC case is retried with a new ECC.
+            for (int attempt = 1; ; attempt++) {
+                int ecc = makeECC(con);
+
+                try (PreparedStatement ps = con.prepareStatement(CREATE_USER_QS, Statement.RETURN_GENERATED_KEYS)) {
                     ps.setString(1, rfid);
-                    ps.setInt(2, makeECC());
+                    ps.setInt(2, ecc);
+                    ps.setTimestamp(3, created);
                     ps.executeUpdate();
+
+                    try (ResultSet rs = ps.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return new User(rs.getInt(1), rfid, false, 0, created, created);
+                        }
+                    }
+                    break;
+                } catch (SQLException ex) {
+                    if (ex.getErrorCode() != ER_DUP_ENTRY || attempt == 3) {
+                        eccAllocator.release(ecc);
+                        throw ex;
+                    }
+
+                    logger.debug(MarkerManager.getMarker("db"), String.format("Duplicate key while creating RFID '%s': %s", rfid, ex.getMessage()));
+                }
+
+                try (PreparedStatement ps = con.prepareStatement(GET_USER_BY_RFID_QS)) {
+                    ps.setString(1, rfid);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {
+                            // Another till registered the card, so the ECC went unused.
+                            eccAllocator.release(ecc);
+                            return new User(rs.getInt("id"), rs.getString("rfid"), rs.getBoolean("is_staff"), rs.getInt("credit"), rs.getTimestamp("created"), rs.getTimestamp("last_used"), rs.getInt("version"));
+                        }
+                    }
                 }
             }
 
-            String GET_USER_BY_RFID_QS = "SELECT * FROM user WHERE rfid = ?;";
             try (PreparedStatement ps = con.prepareStatement(GET_USER_BY_RFID_QS)) {
                 ps.setString(1, rfid);
                 try (ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
-                        User user = new User(rs.getInt("id"), rs.getString("rfid"), rs.getBoolean("is_staff"), rs.getInt("credit"), rs.getTimestamp("created"), rs.getTimestamp("last_used"));
-                        return user;
+                        return new User(rs.getInt("id"), rs.getString("rfid"), rs.getBoolean("is_staff"), rs.getInt("credit"), rs.getTimestamp("created"), rs.getTimestamp("last_used"), rs.getInt("version"));
                     }
                 }
             }
@@ -229,7 +597,8 @@ public class MySQLDBHandler implements DBHandler {
                             rs.getBoolean("is_staff"),
                             rs.getInt("credit"),
                             rs.getTimestamp("created"),
-                            rs.getTimestamp("last_used")
+                            rs.getTimestamp("last_used"),
+                            rs.getInt("version")
                     );
                     return user;
                 }
@@ -327,7 +696,9 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Merges two user accounts. This moves all transactions to the toRFID and afterwards removes fromRFID from the DB.
+     * Merges two user accounts. This moves all transactions, the credit and the lifetime spending to the
+     * toRFID and afterwards removes fromRFID from the DB, all in one database transaction. The credit is
+     * read while both users are locked, so purchases made at other tills up until the merge are kept.
      *
      * @param toUser target for the merge
      * @param fromUser undesired RFID
@@ -335,18 +706,37 @@ public class MySQLDBHandler implements DBHandler {
      */
     public boolean mergeUser(int toUser, int fromUser) throws SQLException {
         String CHANGE_TRANSACTION_OWNER_QS = "UPDATE transaction SET user_id = ? WHERE user_id = ?;";
+        String MOVE_CREDIT_AND_LIFETIME_SPENT_QS = "UPDATE user AS t INNER JOIN user AS f ON f.id = ? " +
+                                                   "SET t.credit = t.credit + f.credit, t.version = t.version + 1, " +
+                                                   "t.lifetime_spent = t.lifetime_spent + f.lifetime_spent " +
+                                                   "WHERE t.id = ?;";
         String DELETE_USER_QS = "DELETE FROM user WHERE id = ?;";
 
         try (Connection con = getConnection();
              PreparedStatement ps1 = con.prepareStatement(CHANGE_TRANSACTION_OWNER_QS);
-             PreparedStatement ps2 = con.prepareStatement(DELETE_USER_QS)) {
+             PreparedStatement ps2 = con.prepareStatement(MOVE_CREDIT_AND_LIFETIME_SPENT_QS);
+             PreparedStatement ps3 = con.prepareStatement(DELETE_USER_QS)) {
 
-            ps1.setInt(1, toUser);
-            ps1.setInt(2, fromUser);
-            ps1.executeUpdate();
+            con.setAutoCommit(false);
+            try {
+                ps1.setInt(1, toUser);
+                ps1.setInt(2, fromUser);
+                ps1.executeUpdate();
 
-            ps2.setInt(1, fromUser);
-            ps2.execute();
+                ps2.setInt(1, fromUser);
+                ps2.setInt(2, toUser);
+                ps2.executeUpdate();
+
+                ps3.setInt(1, fromUser);
+                ps3.execute();
+
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
         } catch (SQLException ex) {
             logger.error(String.format("Failed to merge UserID '%s' with '%s'.", fromUser, toUser));
             logger.error(ex.getMessage(), ex);
@@ -365,7 +755,7 @@ public class MySQLDBHandler implements DBHandler {
      */
     @Override
     public void deposit(String rfid, int value) throws SQLException {
-        String DEPOSIT_QS = "UPDATE user SET credit = credit+? WHERE rfid = ?;";
+        String DEPOSIT_QS = "UPDATE user SET credit = credit+?, version = version+1 WHERE rfid = ?;";
         try (Connection con = getConnection();
              PreparedStatement ps = con.prepareStatement(DEPOSIT_QS)) {
 
@@ -389,7 +779,7 @@ public class MySQLDBHandler implements DBHandler {
      */
     @Override
     public void deduct(String rfid, int value) throws SQLException {
-        String DEDUCT_QS = "UPDATE user SET credit = credit-? WHERE rfid = ?;";
+        String DEDUCT_QS = "UPDATE user SET credit = credit-?, version = version+1 WHERE rfid = ?;";
         try (Connection con = getConnection();
              PreparedStatement ps = con.prepareStatement(DEDUCT_QS)) {
 
@@ -404,6 +794,266 @@ public class MySQLDBHandler implements DBHandler {
         }
     }
 
+    /**
+     * Deposits money into a user's account and logs the transaction, all in one database transaction.
+     *
+     * @param user The {@link User} as it was scanned
+     * @param value value to be inserted
+     * @return The new balance of the user
+     * @throws SQLException
+     */
+    @Override
+    public int makeDeposit(User user, int value) throws SQLException {
+        try (Connection con = getConnection()) {
+            return updateCreditAndLog(con, user, value, true);
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deposit amount to User '%d'.", user.getId()));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Withdraws money from a user's account and logs the transaction, all in one database transaction.
+     * The withdrawal only happens if the user has enough credit for it.
+     *
+     * @param user The {@link User} as it was scanned
+     * @param value value to be deducted
+     * @return The new balance of the user, or -1 if the balance was too low for the purchase
+     * @throws SQLException
+     */
+    @Override
+    public int makePurchase(User user, int value) throws SQLException {
+        try (Connection con = getConnection()) {
+            return updateCreditAndLog(con, user, value, false);
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deduct amount from User '%d'.", user.getId()));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a deposit or purchase made while the database was offline, in one database transaction: the
+     * credit, the lifetime spending and sales rollups for a purchase, and the transaction log row. The row
+     * is dated when the transaction was made, so the rollups count it on the day and hour it happened.
+     * Purchases are written whatever the balance, the goods have been handed over already.
+     *
+     * @param user_id ID of the {@link User}
+     * @param value value deposited or spent
+     * @param is_deposit true for a deposit
+     * @param date When the transaction was made
+     * @return The new balance of the user, which may be below zero, or Integer.MIN_VALUE if the user doesn't exist
+     * @throws SQLException
+     */
+    @Override
+    public int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+        String DEPOSIT_QS = "UPDATE user SET credit = credit+?, version = version+1 WHERE id = ?;";
+        String PURCHASE_QS = "UPDATE user SET credit = credit-?, version = version+1, lifetime_spent = lifetime_spent+? WHERE id = ?;";
+        String GET_CREDIT_QS = "SELECT credit FROM user WHERE id = ?;";
+        String TRANSACTION_QS = "INSERT INTO transaction (user_id, value, is_deposit, new_balance, date) VALUES (?, ?, ?, ?, ?);";
+        // Read the row just inserted, so the rollups use exactly the same date and rules as a rebuild would.
+        String ADD_DAILY_SALES_QS = "INSERT INTO sales_daily (day, sales) " +
+                                    "SELECT DATE(date - INTERVAL 9 HOUR), value FROM transaction " +
+                                    "WHERE id = LAST_INSERT_ID() AND is_deposit != 1 AND value < 1000 " +
+                                    "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales);";
+        String ADD_HOURLY_SALES_QS = "INSERT INTO sales_hourly (hour, sales) " +
+                                     "SELECT DATE_FORMAT(date, '%Y-%m-%d %H:00:00'), value FROM transaction " +
+                                     "WHERE id = LAST_INSERT_ID() AND is_deposit != 1 AND value < 1000 " +
+                                     "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales);";
+
+        try (Connection con = getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = con.prepareStatement(is_deposit ? DEPOSIT_QS : PURCHASE_QS)) {
+                    ps.setInt(1, value);
+                    if (is_deposit) {
+                        ps.setInt(2, user_id);
+                    }
+                    else {
+                        // Amounts of 1000 or more are left out of all spending statistics.
+                        ps.setInt(2, value < 1000 ? value : 0);
+                        ps.setInt(3, user_id);
+                    }
+                    if (ps.executeUpdate() == 0) {
+                        con.rollback();
+                        return Integer.MIN_VALUE;
+                    }
+                }
+
+                // The update locked the row, so this is the balance it left behind.
+                int new_balance;
+                try (PreparedStatement ps = con.prepareStatement(GET_CREDIT_QS)) {
+                    ps.setInt(1, user_id);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        new_balance = rs.getInt("credit");
+                    }
+                }
+
+                try (PreparedStatement ps = con.prepareStatement(TRANSACTION_QS)) {
+                    ps.setInt(1, user_id);
+                    ps.setInt(2, value);
+                    ps.setBoolean(3, is_deposit);
+                    ps.setInt(4, new_balance);
+                    ps.setTimestamp(5, date);
+                    ps.executeUpdate();
+                }
+
+                if (!is_deposit) {
+                    try (PreparedStatement ps = con.prepareStatement(ADD_DAILY_SALES_QS)) {
+                        ps.executeUpdate();
+                    }
+                    try (PreparedStatement ps = con.prepareStatement(ADD_HOURLY_SALES_QS)) {
+                        ps.executeUpdate();
+                    }
+                }
+
+                con.commit();
+                return new_balance;
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to replay offline transaction for User '%d'.", user_id));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Changes the credit of a user and inserts the transaction log row with the new balance, committing
+     * once. The credit is read together with its version, and the update only goes through if the version
+     * is still the same, so no lock is held while the new balance is worked out. If another till or a merge
+     * changed the user in between, nothing is written and the change is tried again with the credit read
+     * anew, up to {@link #CREDIT_UPDATE_ATTEMPTS} times. The balance logged is therefore always the credit
+     * the update left behind. Purchases are also added to the user's lifetime spending and the sales
+     * rollup tables in the same transaction.
+     *
+     * The first attempt starts from the credit and version the user was scanned with, so a sale to a
+     * user nobody else has changed since the scan goes straight to the write.
+     *
+     * @param con Connection to run the transaction on
+     * @param user The user as it was scanned
+     * @return The new balance, or -1 if the user doesn't exist or the balance is too low for a purchase
+     * @throws SQLException also if the credit was changed by others on every attempt
+     */
+    private int updateCreditAndLog(Connection con, User user, int value, boolean is_deposit) throws SQLException {
+        int user_id = user.getId();
+        for (int attempt = 1; ; attempt++) {
+            int new_balance = tryUpdateCreditAndLog(con, user_id, value, is_deposit, attempt == 1 ? user : null);
+            if (new_balance != -2) return new_balance;
+
+            if (attempt == CREDIT_UPDATE_ATTEMPTS) {
+                // Serialization failure, the same state MySQL gives a deadlocked transaction.
+                throw new SQLException(String.format("Credit of User '%d' was changed by others on all %d attempts.", user_id, attempt), "40001");
+            }
+            logger.debug(MarkerManager.getMarker("db"), String.format("Credit of User '%d' changed since it was read, retrying.", user_id));
+        }
+    }
+
+    /**
+     * One attempt at {@link #updateCreditAndLog(Connection, User, int, boolean)}.
+     *
+     * @param scanned User whose credit and version are tried without reading them, or null to read them
+     * @return The new balance, -1 if the user doesn't exist or the balance is too low for a purchase, or
+     *         -2 if the version changed and nothing was written
+     * @throws SQLException
+     */
+    private int tryUpdateCreditAndLog(Connection con, int user_id, int value, boolean is_deposit, User scanned) throws SQLException {
+        String GET_CREDIT_QS = "SELECT credit, version FROM user WHERE id = ?;";
+        String DEPOSIT_QS = "UPDATE user SET credit = ?, version = version+1 WHERE id = ? AND version = ?;";
+        String PURCHASE_QS = "UPDATE user SET credit = ?, version = version+1, lifetime_spent = lifetime_spent+? WHERE id = ? AND version = ?;";
+        String TRANSACTION_QS = "INSERT INTO transaction (user_id, value, is_deposit, new_balance) VALUES (?, ?, ?, ?);";
+        // Read the row just inserted, so the rollups use exactly the same date and rules as a rebuild would.
+        String ADD_DAILY_SALES_QS = "INSERT INTO sales_daily (day, sales) " +
+                                    "SELECT DATE(date - INTERVAL 9 HOUR), value FROM transaction " +
+                                    "WHERE id = LAST_INSERT_ID() AND is_deposit != 1 AND value < 1000 " +
+                                    "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales);";
+        String ADD_HOURLY_SALES_QS = "INSERT INTO sales_hourly (hour, sales) " +
+                                     "SELECT DATE_FORMAT(date, '%Y-%m-%d %H:00:00'), value FROM transaction " +
+                                     "WHERE id = LAST_INSERT_ID() AND is_deposit != 1 AND value < 1000 " +
+                                     "ON DUPLICATE KEY UPDATE sales = sales + VALUES(sales);";
+
+        con.setAutoCommit(false);
+        try {
+            int credit;
+            int version;
+            // A scanned credit too low for the purchase is read again, the card may have been topped up since.
+            if (scanned != null && (is_deposit || scanned.getCredit() >= value)) {
+                credit = scanned.getCredit();
+                version = scanned.getVersion();
+            }
+            else {
+                // Each attempt runs in a new transaction, so this reads what other tills have committed since the last one.
+                try (PreparedStatement ps = con.prepareStatement(GET_CREDIT_QS)) {
+                    ps.setInt(1, user_id);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) {
+                            con.rollback();
+                            return -1;
+                        }
+                        credit = rs.getInt("credit");
+                        version = rs.getInt("version");
+                    }
+                }
+            }
+
+            int new_balance = is_deposit ? credit + value : credit - value;
+            if (new_balance < 0 && !is_deposit) {
+                con.rollback();
+                return -1;
+            }
+
+            try (PreparedStatement ps = con.prepareStatement(is_deposit ? DEPOSIT_QS : PURCHASE_QS)) {
+                if (is_deposit) {
+                    ps.setInt(1, new_balance);
+                    ps.setInt(2, user_id);
+                    ps.setInt(3, version);
+                }
+                else {
+                    ps.setInt(1, new_balance);
+                    // Amounts of 1000 or more are left out of all spending statistics.
+                    ps.setInt(2, value < 1000 ? value : 0);
+                    ps.setInt(3, user_id);
+                    ps.setInt(4, version);
+                }
+                if (ps.executeUpdate() == 0) {
+                    con.rollback();
+                    return -2;
+                }
+            }
+
+            try (PreparedStatement ps = con.prepareStatement(TRANSACTION_QS)) {
+                ps.setInt(1, user_id);
+                ps.setInt(2, value);
+                ps.setBoolean(3, is_deposit);
+                ps.setInt(4, new_balance);
+                ps.executeUpdate();
+            }
+
+            if (!is_deposit) {
+                try (PreparedStatement ps = con.prepareStatement(ADD_DAILY_SALES_QS)) {
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = con.prepareStatement(ADD_HOURLY_SALES_QS)) {
+                    ps.executeUpdate();
+                }
+            }
+
+            con.commit();
+            return new_balance;
+        } catch (SQLException ex) {
+            con.rollback();
+            throw ex;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
     /**
      * This command will fetch all users stored in the database ordered by when they
      * were last used.
@@ -427,7 +1077,8 @@ public class MySQLDBHandler implements DBHandler {
                             rs.getBoolean("is_staff"),
                             rs.getInt("credit"),
                             rs.getTimestamp("created"),
-                            rs.getTimestamp("last_used")
+                            rs.getTimestamp("last_used"),
+                            rs.getInt("version")
                     );
                     users.add(user);
                 }
@@ -442,6 +1093,58 @@ public class MySQLDBHandler implements DBHandler {
         return users;
     }
 
+    /**
+     * Fetches up to 'amount' users in order of when they were last used, starting after the given user.
+     * Users last used at the same time are ordered by id, so the last user on a page is enough to find
+     * the next page. Each page is its own query, so no connection is held between pages.
+     *
+     * @param user Last user on the previous page, or null for the first page
+     * @param amount Number of users to retrieve
+     * @return List of users
+     * @throws SQLException
+     */
+    @Override
+    public List<User> getUsersAfter(User user, int amount) throws SQLException {
+        List<User> users = new ArrayList<>();
+
+        String GET_FIRST_USERS_QS = "SELECT * FROM user ORDER BY last_used, id LIMIT ?;";
+        String GET_USERS_AFTER_QS = "SELECT * FROM user WHERE last_used > ? OR (last_used = ? AND id > ?) ORDER BY last_used, id LIMIT ?;";
+        try (Connection con = getConnection();
+             PreparedStatement ps = con.prepareStatement(user == null ? GET_FIRST_USERS_QS : GET_USERS_AFTER_QS)) {
+
+            if (user == null) {
+                ps.setInt(1, amount);
+            }
+            else {
+                ps.setTimestamp(1, user.getLastUsed());
+                ps.setTimestamp(2, user.getLastUsed());
+                ps.setInt(3, user.getId());
+                ps.setInt(4, amount);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    User u = new User(
+                            rs.getInt("id"),
+                            rs.getString("rfid"),
+                            rs.getBoolean("is_staff"),
+                            rs.getInt("credit"),
+                            rs.getTimestamp("created"),
+                            rs.getTimestamp("last_used"),
+                            rs.getInt("version")
+                    );
+                    users.add(u);
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to retrieve users.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return users;
+    }
+
     /**
      * Get a count of all users stored in the database.
      *
@@ -502,7 +1205,7 @@ public class MySQLDBHandler implements DBHandler {
     public List<Transaction> getTransactions(int amount) throws SQLException {
         List <Transaction> transactions = new ArrayList<>();
 
-        String GET_TRANSACTIONS_QS = "SELECT * " +
+        String GET_TRANSACTIONS_QS = "SELECT t.*, u.rfid " +
                                      "FROM transaction AS t " +
                                      "INNER JOIN user AS u " +
                                      "ON t.user_id = u.id " +
@@ -515,6 +1218,7 @@ public class MySQLDBHandler implements DBHandler {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Transaction tr = new Transaction(
+                            rs.getInt("id"),
                             rs.getInt("user_id"),
                             rs.getString("rfid"),
                             rs.getInt("value"),
@@ -545,7 +1249,7 @@ public class MySQLDBHandler implements DBHandler {
     public List<Transaction> getTransactionsFromLastHours(int hours) throws SQLException {
         List <Transaction> transactions = new ArrayList<>();
 
-        String GET_TRANSACTIONS_FROM_LAST_HOURS_QS = "SELECT * " +
+        String GET_TRANSACTIONS_FROM_LAST_HOURS_QS = "SELECT t.*, u.rfid " +
                                      "FROM transaction AS t " +
                                      "INNER JOIN user AS u " +
                                      "ON t.user_id = u.id " +
@@ -558,6 +1262,7 @@ public class MySQLDBHandler implements DBHandler {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Transaction tr = new Transaction(
+                            rs.getInt("id"),
                             rs.getInt("user_id"),
                             rs.getString("rfid"),
                             rs.getInt("value"),
@@ -577,6 +1282,48 @@ public class MySQLDBHandler implements DBHandler {
         return transactions;
     }
 
+    /**
+     * Streams transactions from the database from a specified time window.
+     *
+     * @param hours Hours back in time to look
+     * @param visitor Visitor to hand each transaction to
+     * @throws SQLException
+     */
+    @Override
+    public void visitTransactionsFromLastHours(int hours, RowVisitor<Transaction> visitor) throws SQLException {
+        String GET_TRANSACTIONS_FROM_LAST_HOURS_QS = "SELECT t.*, u.rfid " +
+                                     "FROM transaction AS t " +
+                                     "INNER JOIN user AS u " +
+                                     "ON t.user_id = u.id " +
+                                     "WHERE t.date > DATE_SUB(NOW(), INTERVAL ? HOUR);";
+        try (Connection con = getConnection();
+             PreparedStatement ps = prepareStreaming(con, GET_TRANSACTIONS_FROM_LAST_HOURS_QS)) {
+
+            ps.setInt(1, hours);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Transaction tr = new Transaction(
+                            rs.getInt("id"),
+                            rs.getInt("user_id"),
+                            rs.getString("rfid"),
+                            rs.getInt("value"),
+                            rs.getInt("new_balance"),
+                            rs.getBoolean("is_deposit"),
+                            rs.getTimestamp("date")
+                    );
+                    if (!visitor.visit(tr)) return;
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        visitor.done();
+    }
+
     /**
      * Fetches the last 'amount' transactions from the database which matches the supplied user.
      *
@@ -589,7 +1336,7 @@ public class MySQLDBHandler implements DBHandler {
     public List<Transaction> getTransactions(int user_id, int amount) throws SQLException {
         List <Transaction> transactions = new ArrayList<>();
 
-        String GET_TRANSACTIONS_BY_USER_QS = "SELECT * FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE u.id = ? ORDER BY t.id DESC LIMIT ?;";
+        String GET_TRANSACTIONS_BY_USER_QS = "SELECT t.*, u.rfid FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE u.id = ? ORDER BY t.id DESC LIMIT ?;";
         try (Connection con = getConnection();
              PreparedStatement ps = con.prepareStatement(GET_TRANSACTIONS_BY_USER_QS)) {
 
@@ -599,6 +1346,7 @@ public class MySQLDBHandler implements DBHandler {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Transaction tr = new Transaction(
+                            rs.getInt("id"),
                             rs.getInt("user_id"),
                             rs.getString("rfid"),
                             rs.getInt("value"),
@@ -621,7 +1369,113 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Fetches the sales for a specified date.
+     * Fetches up to 'amount' transactions made before the transaction with the given id.
+     * Use the id of the oldest transaction on a page to get the page before it.
+     *
+     * @param id Id of the transaction to page back from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public List<Transaction> getTransactionsBefore(int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BEFORE_QS = "SELECT t.*, u.rfid FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE t.id < ? ORDER BY t.id DESC LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BEFORE_QS, false, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions by the supplied user made before the transaction with the given id.
+     *
+     * @param user_id Id of the user
+     * @param id Id of the transaction to page back from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public List<Transaction> getTransactionsBefore(int user_id, int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BY_USER_BEFORE_QS = "SELECT t.*, u.rfid FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE t.user_id = ? AND t.id < ? ORDER BY t.id DESC LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BY_USER_BEFORE_QS, false, user_id, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions made after the transaction with the given id.
+     * Use the id of the newest transaction on a page to get the page after it.
+     *
+     * @param id Id of the transaction to page forward from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public List<Transaction> getTransactionsAfter(int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_AFTER_QS = "SELECT t.*, u.rfid FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE t.id > ? ORDER BY t.id LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_AFTER_QS, true, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions by the supplied user made after the transaction with the given id.
+     *
+     * @param user_id Id of the user
+     * @param id Id of the transaction to page forward from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public List<Transaction> getTransactionsAfter(int user_id, int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BY_USER_AFTER_QS = "SELECT t.*, u.rfid FROM transaction AS t INNER JOIN user AS u ON t.user_id = u.id WHERE t.user_id = ? AND t.id > ? ORDER BY t.id LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BY_USER_AFTER_QS, true, user_id, id, amount);
+    }
+
+    /**
+     * Runs a keyset paginated transaction query. The query seeks straight to the id the page starts
+     * at in the primary key or the (user_id, id) index, so paging deep into the history reads no more
+     * rows than the first page does, unlike OFFSET.
+     *
+     * @param query Query taking the params in order
+     * @param ascending Whether the query reads oldest first, in which case the page is reversed
+     * @param params Integer parameters of the query
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    private List<Transaction> getTransactionPage(String query, boolean ascending, int... params) throws SQLException {
+        List<Transaction> transactions = new ArrayList<>();
+
+        try (Connection con = getConnection();
+             PreparedStatement ps = con.prepareStatement(query)) {
+
+            for (int i = 0; i < params.length; i++) {
+                ps.setInt(i + 1, params[i]);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Transaction tr = new Transaction(
+                            rs.getInt("id"),
+                            rs.getInt("user_id"),
+                            rs.getString("rfid"),
+                            rs.getInt("value"),
+                            rs.getInt("new_balance"),
+                            rs.getBoolean("is_deposit"),
+                            rs.getTimestamp("date")
+                    );
+                    transactions.add(tr);
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        if (ascending) Collections.reverse(transactions);
+        return transactions;
+    }
+
+    /**
+     * Fetches the sales for a specified date from the daily sales rollup.
+     * Days run from 09:00 to 08:59 the next day.
      *
      * @param date Date to look up
      * @return String in the format; "date|sales"
@@ -629,11 +1483,9 @@ public class MySQLDBHandler implements DBHandler {
      */
     @Override
     public String getSalesForDate(String date) throws SQLException {
-        String SALES_FOR_DATE = "SELECT SUM(value) AS sales, DATE_FORMAT(date, '%W %d-%m-%Y') AS date " +
-                                "FROM `transaction` " +
-                                "WHERE is_deposit != 1 " +
-                                "AND value < 1000 " +
-                                "AND DATE_FORMAT(DATE(date - INTERVAL 9 hour), '%Y-%m-%d') = ?;";
+        String SALES_FOR_DATE = "SELECT sales, DATE_FORMAT(day, '%W %d-%m-%Y') AS date " +
+                                "FROM sales_daily " +
+                                "WHERE day = ?;";
         try (Connection con = getConnection();
              PreparedStatement ps = con.prepareStatement(SALES_FOR_DATE)) {
 
@@ -641,7 +1493,6 @@ public class MySQLDBHandler implements DBHandler {
 
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    if (rs.getString("date") == null) return null;
                     return rs.getString("date") +"|"+ rs.getInt("sales");
                 }
             }
@@ -657,7 +1508,8 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Returns all days the system has been used and how much the sales were that day.
+     * Returns all days the system has been used and how much the sales were that day,
+     * read from the daily sales rollup.
      *
      * @return List of Strings in the format: "# | date | sales"
      * @throws SQLException
@@ -666,10 +1518,9 @@ public class MySQLDBHandler implements DBHandler {
     public List<String> topDays() throws SQLException {
         List<String> topDays = new ArrayList<>();
 
-        String TOP_DAYS_QS = "SELECT SUM(value) AS sales, DATE_FORMAT(date, '%W %d-%m-%Y') AS date " +
-                             "FROM `transaction` " +
-                             "WHERE is_deposit != 1 AND value < 1000 " +
-                             "GROUP BY DATE(date - INTERVAL 9 hour) " +
+        String TOP_DAYS_QS = "SELECT sales, DATE_FORMAT(day, '%W %d-%m-%Y') AS date " +
+                             "FROM sales_daily " +
+                             "WHERE sales > 0 " +
                              "ORDER BY sales DESC;";
         try (Connection con = getConnection();
              Statement st = con.createStatement();
@@ -690,7 +1541,7 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Fetches the total amount spent by a user.
+     * Fetches the total amount spent by a user from the user's lifetime spending counter.
      *
      * @param rfid RFID to look up
      * @return sum of all purchases
@@ -698,20 +1549,15 @@ public class MySQLDBHandler implements DBHandler {
      */
     @Override
     public int totalSpendings(String rfid) throws SQLException {
-        String TOP_DAYS_QS =
-                "SELECT SUM( t.value ) AS spent " +
-                "FROM transaction AS t " +
-                "INNER JOIN user AS u " +
-                "ON t.user_id = u.id " +
-                "WHERE t.is_deposit != 1 AND t.value < 1000 AND u.rfid = ?;";
+        String TOTAL_SPENDINGS_QS = "SELECT lifetime_spent FROM user WHERE rfid = ?;";
         try (Connection con = getConnection();
-             PreparedStatement ps = con.prepareStatement(TOP_DAYS_QS)) {
+             PreparedStatement ps = con.prepareStatement(TOTAL_SPENDINGS_QS)) {
 
             ps.setString(1, rfid);
 
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getInt("spent");
+                    return rs.getInt("lifetime_spent");
                 }
             }
         } catch (SQLException ex) {
@@ -724,7 +1570,7 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * Makes a list of the top ten spenders through all time.
+     * Makes a list of the top ten spenders through all time, using the indexed lifetime spending counter.
      *
      * @return List of strings: "RFID|Amount"
      * @throws SQLException
@@ -733,13 +1579,10 @@ public class MySQLDBHandler implements DBHandler {
     public List<String> getTopTen() throws SQLException {
         List<String> topTen = new ArrayList<>();
 
-        String TOP_TEN_QS = "SELECT ABS(SUM(t.value)) AS spent, u.rfid " +
-                            "FROM transaction AS t " +
-                            "INNER JOIN user AS u " +
-                            "ON t.user_id = u.id " +
-                            "WHERE t.is_deposit != 1 AND t.value < 1000 " +
-                            "GROUP BY u.rfid " +
-                            "ORDER BY spent DESC " +
+        String TOP_TEN_QS = "SELECT rfid, lifetime_spent AS spent " +
+                            "FROM user " +
+                            "WHERE lifetime_spent > 0 " +
+                            "ORDER BY lifetime_spent DESC " +
                             "LIMIT 10;";
         try (Connection con = getConnection();
              Statement st = con.createStatement();
@@ -797,6 +1640,59 @@ public class MySQLDBHandler implements DBHandler {
         return topTen;
     }
 
+    /**
+     * Recomputes the daily and hourly sales rollups and the lifetime spending of every user from the
+     * transaction table.
+     * Only needed if transactions were written without going through makePurchase, like after an import.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void rebuildStatistics() throws SQLException {
+        String[] REBUILD_QS = new String[]{
+                "DELETE FROM sales_daily;",
+                "INSERT INTO sales_daily (day, sales) " +
+                "SELECT DATE(date - INTERVAL 9 HOUR), SUM(value) FROM transaction " +
+                "WHERE is_deposit != 1 AND value < 1000 " +
+                "GROUP BY DATE(date - INTERVAL 9 HOUR);",
+                "DELETE FROM sales_hourly;",
+                "INSERT INTO sales_hourly (hour, sales) " +
+                "SELECT DATE_FORMAT(date, '%Y-%m-%d %H:00:00'), SUM(value) FROM transaction " +
+                "WHERE is_deposit != 1 AND value < 1000 " +
+                "GROUP BY DATE_FORMAT(date, '%Y-%m-%d %H:00:00');",
+                // last_used updates itself on any change to the row, so it is set to itself to keep it.
+                "UPDATE user SET lifetime_spent = 0, last_used = last_used;",
+                "UPDATE user AS u " +
+                "INNER JOIN (" +
+                "  SELECT user_id, SUM(value) AS spent FROM transaction " +
+                "  WHERE is_deposit != 1 AND value < 1000 " +
+                "  GROUP BY user_id" +
+                ") AS s ON s.user_id = u.id " +
+                "SET u.lifetime_spent = s.spent, u.last_used = u.last_used;"
+        };
+
+        try (Connection con = getConnection();
+             Statement st = con.createStatement()) {
+
+            con.setAutoCommit(false);
+            try {
+                for (String query : REBUILD_QS) {
+                    st.executeUpdate(query);
+                }
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to rebuild statistics.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
     /**
      * Transactions done are logged with this method.
      *
@@ -854,63 +1750,146 @@ public class MySQLDBHandler implements DBHandler {
     }
 
     /**
-     * This method is only supposed to be used with the importing of older SQL databases
-     * to allow the timestamp to be set.
+     * Imports users from an older database. Users whose RFID is not in use are created with the given
+     * credit and creation date, and users that already exist have the credit added to their balance.
+     * Users are written in batches, committing once per {@link #IMPORT_CHUNK_SIZE} users.
+     *
+     * This method is only supposed to be used with the importing of older SQL databases.
      *
-     * @param rfid RFID to create a user for
-     * @param created Timestamp it was created
-     * @return True if a user was created
+     * @param users Users to import, the ID of each is ignored
+     * @return Map from RFID to the ID of the user in this database
      * @throws SQLException
      */
     @Override
-    public boolean create_user_from_previous_db(String rfid, int credit, Timestamp created) throws SQLException {
-        if (!rfidExists(rfid)) {
-            String CREATE_USER_QS = "INSERT INTO user (credit, rfid, ecc, is_staff, created) VALUES (?, ?, ?, 0, ?);";
-            try (Connection con = getConnection();
-                 PreparedStatement ps = con.prepareStatement(CREATE_USER_QS)) {
-
-                ps.setInt(1, credit);
-                ps.setString(2, rfid);
-                ps.setInt(3, makeECC());
-                ps.setTimestamp(4, created);
-                ps.executeUpdate();
+    public Map<String, Integer> importUsers(List<User> users) throws SQLException {
+        Map<String, Integer> ids = new HashMap<>();
 
-                return true;
+        try (Connection con = getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                for (int from = 0; from < users.size(); from += IMPORT_CHUNK_SIZE) {
+                    importUserChunk(con, users.subList(from, Math.min(users.size(), from + IMPORT_CHUNK_SIZE)), ids);
+                    con.commit();
+                }
             } catch (SQLException ex) {
-                logger.error(String.format("Failed to create user for RFID '%s'.", rfid));
-                logger.error(ex.getMessage(), ex);
+                con.rollback();
                 throw ex;
+            } finally {
+                con.setAutoCommit(true);
             }
+        } catch (SQLException ex) {
+            logger.error("Failed to import users.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
         }
-        return false;
+
+        return ids;
+    }
+
+    private void importUserChunk(Connection con, List<User> users, Map<String, Integer> ids) throws SQLException {
+        String CREATE_USER_QS = "INSERT INTO user (credit, rfid, ecc, is_staff, created) VALUES (?, ?, ?, 0, ?);";
+        String DEPOSIT_QS = "UPDATE user SET credit = credit+?, version = version+1 WHERE rfid = ?;";
+
+        Map<String, Integer> existing = findUserIds(con, users);
+        List<Integer> allocated = new ArrayList<>();
+
+        try (PreparedStatement create = con.prepareStatement(CREATE_USER_QS);
+             PreparedStatement deposit = con.prepareStatement(DEPOSIT_QS)) {
+
+            for (User user : users) {
+                if (existing.containsKey(user.getRfid())) {
+                    deposit.setInt(1, user.getCredit());
+                    deposit.setString(2, user.getRfid());
+                    deposit.addBatch();
+                }
+                else {
+                    int ecc = makeECC(con);
+                    allocated.add(ecc);
+
+                    create.setInt(1, user.getCredit());
+                    create.setString(2, user.getRfid());
+                    create.setInt(3, ecc);
+                    create.setTimestamp(4, user.getCreated());
+                    create.addBatch();
+                }
+            }
+
+            create.executeBatch();
+            deposit.executeBatch();
+        } catch (SQLException ex) {
+            for (int ecc : allocated) {
+                eccAllocator.release(ecc);
+            }
+            throw ex;
+        }
+
+        ids.putAll(findUserIds(con, users));
+    }
+
+    /**
+     * @return Map from RFID to user ID for the given users that exist in the database
+     */
+    private Map<String, Integer> findUserIds(Connection con, List<User> users) throws SQLException {
+        Map<String, Integer> ids = new HashMap<>();
+
+        StringBuilder FIND_USER_IDS_QS = new StringBuilder("SELECT id, rfid FROM user WHERE rfid IN (");
+        for (int i = 0; i < users.size(); i++) {
+            FIND_USER_IDS_QS.append(i == 0 ? "?" : ", ?");
+        }
+        FIND_USER_IDS_QS.append(");");
+
+        try (PreparedStatement ps = con.prepareStatement(FIND_USER_IDS_QS.toString())) {
+            for (int i = 0; i < users.size(); i++) {
+                ps.setString(i + 1, users.get(i).getRfid());
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.put(rs.getString("rfid"), rs.getInt("id"));
+                }
+            }
+        }
+
+        return ids;
     }
 
     /**
-     * This method is only supposed to be used with the importing of older SQL databases
-     * to allow the timestamp to be set.
+     * Imports transactions from an older database with their original dates, as one batch in one
+     * database transaction. The rollups and lifetime spending are not updated, run rebuildStatistics
+     * when all transactions are imported.
      *
-     * @param user_id ID of {@link User} for this transaction
-     * @param value Amount of money
-     * @param is_deposit True if money was deposited
-     * @param new_balance The new balance for {@link User}
-     * @param timestamp Timestamp of the transaction
+     * This method is only supposed to be used with the importing of older SQL databases.
+     *
+     * @param transactions Transactions to import
      * @throws SQLException
      */
     @Override
-    public void transaction(int user_id, int value, boolean is_deposit, int new_balance, Timestamp timestamp) throws SQLException {
+    public void importTransactions(List<Transaction> transactions) throws SQLException {
         String TRANSACTION_QS = "INSERT INTO transaction (user_id, value, is_deposit, new_balance, date) VALUES (?, ?, ?, ?, ?);";
+
         try (Connection con = getConnection();
              PreparedStatement ps = con.prepareStatement(TRANSACTION_QS)) {
 
-            ps.setInt(1, user_id);
-            ps.setInt(2, value);
-            ps.setBoolean(3, is_deposit);
-            ps.setInt(4, new_balance);
-            ps.setTimestamp(5, timestamp);
-            ps.executeUpdate();
-
+            con.setAutoCommit(false);
+            try {
+                for (Transaction transaction : transactions) {
+                    ps.setInt(1, transaction.getUserid());
+                    ps.setInt(2, transaction.getValue());
+                    ps.setBoolean(3, transaction.isDeposit());
+                    ps.setInt(4, transaction.getNew_balance());
+                    ps.setTimestamp(5, transaction.getDate());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
         } catch (SQLException ex) {
-            logger.error(String.format("Failed to create transaction for %d to User '%d'. Deposit = %s", value, user_id, is_deposit));
+            logger.error(String.format("Failed to import %d transactions.", transactions.size()));
             logger.error(ex.getMessage(), ex);
             throw ex;
         }
@@ -918,18 +1897,18 @@ public class MySQLDBHandler implements DBHandler {
 
     /**
      * Creates an ECC number meant to be used as simple account recovery.
+     * The ECCs in use are read from the database the first time this is called.
      *
-     * @return random int in range
+     * @param con Connection to use if the ECCs in use have not been loaded yet
+     * @return random unused ECC in the range 100000-999999
      * @throws SQLException
      */
-    private int makeECC() throws SQLException {
-        Random rand = new Random();
-        int ecc;
-        do {
-            // ECC is now a random number between 100000-999999
-            ecc = rand.nextInt((999999 - 100000) + 1) + 100000;
-        } while (eccExists(ecc));
+    private int makeECC(Connection con) throws SQLException {
+        if (!eccAllocator.isLoaded()) eccAllocator.load(con);
+
+        int ecc = eccAllocator.allocate();
+        if (ecc == -1) throw new SQLException("There are no unused ECC numbers left.");
+
         return ecc;
     }
-
-}
\ No newline at end of file
+}
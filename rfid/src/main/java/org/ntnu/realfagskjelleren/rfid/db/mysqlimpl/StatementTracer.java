@@ -0,0 +1,252 @@
+package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Traces the statements run on a connection.
+ *
+ * For every statement it records the SQL, the number of parameters, the number of rows returned
+ * or changed, how long it took to get the connection from the pool and how long the statement
+ * took. Time spent reading rows from a result set counts towards the statement, while time the
+ * caller spends between rows does not. Results are logged when the result set or statement is
+ * closed.
+ *
+ * With tracing on, every statement is logged at debug level with the "sql" marker. Statements
+ * that take at least the slow query threshold are logged at warn level with the "slowquery"
+ * marker, whether tracing is on or not.
+ *
+ * @author Håvard Slettvold
+ */
+class StatementTracer {
+
+    private static Logger logger = LogManager.getLogger(StatementTracer.class.getName());
+
+    private static final Marker SQL = MarkerManager.getMarker("sql");
+    private static final Marker SLOW_QUERY = MarkerManager.getMarker("slowquery");
+
+    private final boolean tracing;
+    private final long slowQueryThreshold;
+
+    /**
+     * @param tracing true to log every statement
+     * @param slowQueryThreshold Milliseconds a statement may take before it is logged as slow, 0 to not log slow statements
+     */
+    StatementTracer(boolean tracing, int slowQueryThreshold) {
+        this.tracing = tracing;
+        this.slowQueryThreshold = slowQueryThreshold > 0 ? slowQueryThreshold * 1000000L : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the tracer would log anything
+     */
+    boolean isEnabled() {
+        return tracing || slowQueryThreshold != Long.MAX_VALUE;
+    }
+
+    /**
+     * @param connection Connection to trace the statements of
+     * @param acquireNanos Time it took to get the connection
+     * @return Connection that traces the statements made from it
+     */
+    Connection trace(Connection connection, long acquireNanos) {
+        return proxy(Connection.class, new TracedConnection(connection, acquireNanos));
+    }
+
+    private <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static int countParameters(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') count++;
+        }
+
+        return count;
+    }
+
+    private class TracedConnection implements InvocationHandler {
+
+        private final Connection connection;
+        private final long acquireNanos;
+
+        private TracedConnection(Connection connection, long acquireNanos) {
+            this.connection = connection;
+            this.acquireNanos = acquireNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = StatementTracer.invoke(connection, method, args);
+
+            if (result instanceof PreparedStatement) {
+                return proxy(PreparedStatement.class, new TracedStatement(result, (String) args[0], acquireNanos));
+            }
+            if (result instanceof Statement) {
+                return proxy(Statement.class, new TracedStatement(result, null, acquireNanos));
+            }
+
+            return result;
+        }
+    }
+
+    private class TracedStatement implements InvocationHandler {
+
+        private final Object statement;
+        private final String template;
+        private final long acquireNanos;
+        private Trace trace;
+
+        private TracedStatement(Object statement, String template, long acquireNanos) {
+            this.statement = statement;
+            this.template = template;
+            this.acquireNanos = acquireNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                finish();
+                return StatementTracer.invoke(statement, method, args);
+            }
+            if (!name.startsWith("execute")) {
+                return StatementTracer.invoke(statement, method, args);
+            }
+
+            // Only one result is open per statement, executing again closes the last one.
+            finish();
+            String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : template;
+            trace = new Trace(sql, acquireNanos);
+
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = StatementTracer.invoke(statement, method, args);
+            } finally {
+                trace.nanos += System.nanoTime() - start;
+            }
+
+            if (result instanceof ResultSet) {
+                return proxy(ResultSet.class, new TracedResultSet((ResultSet) result, trace));
+            }
+            if (result instanceof Integer) {
+                trace.rows = (Integer) result;
+            }
+            else if (result instanceof int[]) {
+                trace.rows = 0;
+                for (int count : (int[]) result) {
+                    if (count > 0) trace.rows += count;
+                }
+            }
+            if (!name.equals("executeQuery")) finish();
+
+            return result;
+        }
+
+        private void finish() {
+            if (trace != null) trace.finish();
+            trace = null;
+        }
+    }
+
+    private class TracedResultSet implements InvocationHandler {
+
+        private final ResultSet resultSet;
+        private final Trace trace;
+
+        private TracedResultSet(ResultSet resultSet, Trace trace) {
+            this.resultSet = resultSet;
+            this.trace = trace;
+            trace.rows = 0;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    long start = System.nanoTime();
+                    try {
+                        boolean next = resultSet.next();
+                        if (next) trace.rows++;
+                        return next;
+                    } finally {
+                        trace.nanos += System.nanoTime() - start;
+                    }
+                case "close":
+                    // Closing a streaming result set reads the rest of it off the connection.
+                    long closing = System.nanoTime();
+                    try {
+                        return StatementTracer.invoke(resultSet, method, args);
+                    } finally {
+                        trace.nanos += System.nanoTime() - closing;
+                        trace.finish();
+                    }
+                default:
+                    return StatementTracer.invoke(resultSet, method, args);
+            }
+        }
+    }
+
+    /**
+     * One execution of a statement.
+     */
+    private class Trace {
+
+        private final String sql;
+        private final long acquireNanos;
+        private long nanos;
+        // -1 until known, for instance for execute() which may or may not return rows.
+        private int rows = -1;
+        private boolean finished;
+
+        private Trace(String sql, long acquireNanos) {
+            this.sql = sql;
+            this.acquireNanos = acquireNanos;
+        }
+
+        private void finish() {
+            if (finished) return;
+            finished = true;
+
+            boolean slow = nanos >= slowQueryThreshold;
+            if (!slow && !(tracing && logger.isDebugEnabled(SQL))) return;
+
+            String message = String.format("%.1f ms (connection %.1f ms), %d parameters, %s rows: %s",
+                    nanos / 1000000.0,
+                    acquireNanos / 1000000.0,
+                    sql == null ? 0 : countParameters(sql),
+                    rows == -1 ? "?" : Integer.toString(rows),
+                    sql
+            );
+
+            if (slow) {
+                logger.warn(SLOW_QUERY, message);
+            }
+            else {
+                logger.debug(SQL, message);
+            }
+        }
+    }
+}
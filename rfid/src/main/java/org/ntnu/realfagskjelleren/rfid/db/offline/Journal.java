@@ -0,0 +1,205 @@
+package org.ntnu.realfagskjelleren.rfid.db.offline;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of deposits and purchases, kept in a memory-mapped file.
+ *
+ * The file starts with a header holding the number of records that have been replayed, followed
+ * by fixed-size records. Every record carries a CRC32 of its contents, so the end of the journal
+ * is the first record that doesn't check out. A record torn by a crash is thereby dropped instead
+ * of being replayed as garbage.
+ *
+ * Not thread safe, callers synchronize.
+ *
+ * @author Håvard Slettvold
+ */
+class Journal {
+
+    private static final int MAGIC = 0x52464a31;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 48;
+    private static final int RFID_SIZE = 20;
+
+    // Offsets within a record.
+    private static final int USER_ID = 0;
+    private static final int VALUE = 4;
+    private static final int IS_DEPOSIT = 8;
+    private static final int TIMESTAMP = 12;
+    private static final int RFID = 20;
+    private static final int CRC = 40;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int written;
+    private int replayed;
+
+    /**
+     * Opens the journal, creating it if it doesn't exist, and finds the records that have not been replayed.
+     *
+     * @param path Path of the journal file
+     * @param capacity Maximum number of records
+     * @throws IOException if the file can't be opened or isn't a journal
+     */
+    Journal(String path, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(path, "rw");
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) RECORD_SIZE * capacity);
+
+        int magic = buffer.getInt(0);
+        if (magic == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(4, 0);
+            buffer.force();
+        }
+        else if (magic != MAGIC) {
+            file.close();
+            throw new IOException("'" + path + "' is not an offline journal.");
+        }
+
+        while (written < capacity && isValid(written)) {
+            written++;
+        }
+        replayed = (int) Math.min(buffer.getLong(4), written);
+    }
+
+    /**
+     * Appends a record and forces it to disk.
+     *
+     * @return false if the journal is full
+     */
+    boolean append(Record record) {
+        if (written == capacity) return false;
+
+        int offset = offset(written);
+        byte[] rfid = new byte[RFID_SIZE];
+        byte[] bytes = record.rfid.getBytes(ASCII);
+        System.arraycopy(bytes, 0, rfid, 0, Math.min(bytes.length, RFID_SIZE));
+
+        buffer.putInt(offset + USER_ID, record.user_id);
+        buffer.putInt(offset + VALUE, record.value);
+        buffer.putInt(offset + IS_DEPOSIT, record.is_deposit ? 1 : 0);
+        buffer.putLong(offset + TIMESTAMP, record.timestamp);
+        for (int i = 0; i < RFID_SIZE; i++) {
+            buffer.put(offset + RFID + i, rfid[i]);
+        }
+        buffer.putInt(offset + CRC, crc(offset));
+        buffer.force();
+
+        written++;
+        return true;
+    }
+
+    /**
+     * @return true if every record has been replayed
+     */
+    boolean isEmpty() {
+        return replayed == written;
+    }
+
+    /**
+     * @return Number of records that have not been replayed
+     */
+    int pending() {
+        return written - replayed;
+    }
+
+    /**
+     * @param index Position relative to the first record that has not been replayed
+     * @return The record
+     */
+    Record get(int index) {
+        int offset = offset(replayed + index);
+
+        byte[] rfid = new byte[RFID_SIZE];
+        int length = 0;
+        for (; length < RFID_SIZE; length++) {
+            rfid[length] = buffer.get(offset + RFID + length);
+            if (rfid[length] == 0) break;
+        }
+
+        return new Record(
+                buffer.getInt(offset + USER_ID),
+                new String(rfid, 0, length, ASCII),
+                buffer.getInt(offset + VALUE),
+                buffer.getInt(offset + IS_DEPOSIT) == 1,
+                buffer.getLong(offset + TIMESTAMP)
+        );
+    }
+
+    /**
+     * Marks the oldest record that has not been replayed as replayed, and forces the mark to disk so
+     * the record isn't replayed again after a crash. Once every record is replayed the journal is
+     * emptied, so it starts from the beginning of the file again.
+     */
+    void markReplayed() {
+        replayed++;
+
+        if (replayed == written) {
+            // Clear the records before the header, so a crash in between can't replay them again.
+            for (int offset = HEADER_SIZE; offset < offset(written); offset += 8) {
+                buffer.putLong(offset, 0);
+            }
+            buffer.force();
+
+            written = 0;
+            replayed = 0;
+        }
+
+        buffer.putLong(4, replayed);
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private boolean isValid(int index) {
+        int offset = offset(index);
+        return buffer.getInt(offset + CRC) == crc(offset) && buffer.getInt(offset + USER_ID) != 0;
+    }
+
+    private int crc(int offset) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < CRC; i++) {
+            crc.update(buffer.get(offset + i));
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * A deposit or purchase made while the database could not be written to.
+     */
+    static class Record {
+
+        final int user_id;
+        final String rfid;
+        final int value;
+        final boolean is_deposit;
+        final long timestamp;
+
+        Record(int user_id, String rfid, int value, boolean is_deposit, long timestamp) {
+            this.user_id = user_id;
+            this.rfid = rfid;
+            this.value = value;
+            this.is_deposit = is_deposit;
+            this.timestamp = timestamp;
+        }
+    }
+}
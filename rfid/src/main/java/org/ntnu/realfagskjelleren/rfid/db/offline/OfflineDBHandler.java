@@ -0,0 +1,416 @@
+package org.ntnu.realfagskjelleren.rfid.db.offline;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the till selling while the database behind another {@link DBHandler} can't be reached.
+ *
+ * When a call fails because the connection to the database is lost, the handler goes offline.
+ * That call still fails, since the database may have committed it before the connection dropped.
+ * From then on deposits and purchases are written to a local {@link Journal} instead, and checked
+ * against a local balance: the last credit read from the database for the user plus everything
+ * journaled for the user since. Only users that have been seen since the application started can
+ * be served offline.
+ *
+ * A background thread checks whether the database is back, and replays the journal into it in
+ * batches, oldest first. Until the journal is empty new deposits and purchases keep going to the
+ * journal, so they reach the database in the order they were made. Each record is written by user ID
+ * in one database transaction, dated when it was made, so it counts towards the day and hour it
+ * happened in. A purchase is written even if another till spent the credit in the meantime, as the
+ * goods have already been handed over.
+ *
+ * A record is marked as replayed on disk as soon as the database has committed it. Only if the
+ * application dies between the two is a record replayed again on the next start.
+ *
+ * @author Håvard Slettvold
+ */
+public class OfflineDBHandler extends DelegatingDBHandler {
+
+    private static Logger logger = LogManager.getLogger(OfflineDBHandler.class.getName());
+
+    private static final int JOURNAL_CAPACITY = 65536;
+    private static final int REPLAY_BATCH_SIZE = 100;
+    private static final long REPLAY_INTERVAL = 5000;
+
+    private final Journal journal;
+    private final Map<Integer, User> knownUsers = new HashMap<>();
+    private final Map<String, Integer> idsByRfid = new HashMap<>();
+    private final Map<Integer, Integer> idsByEcc = new HashMap<>();
+    // Net change in credit per user from records that have not been replayed.
+    private final Map<Integer, Integer> pending = new HashMap<>();
+    private final ScheduledExecutorService replayer;
+
+    private boolean online = true;
+
+    /**
+     * @param delegate DBHandler to write to while it is reachable
+     * @param journalFile Path of the journal file
+     * @throws IOException if the journal can't be opened
+     */
+    public OfflineDBHandler(DBHandler delegate, String journalFile) throws IOException {
+        this(delegate, journalFile, REPLAY_INTERVAL);
+    }
+
+    /**
+     * @param delegate DBHandler to write to while it is reachable
+     * @param journalFile Path of the journal file
+     * @param replayInterval Milliseconds between checks for whether the database is back
+     * @throws IOException if the journal can't be opened
+     */
+    OfflineDBHandler(DBHandler delegate, String journalFile, long replayInterval) throws IOException {
+        super(delegate);
+
+        this.journal = new Journal(journalFile, JOURNAL_CAPACITY);
+        for (int i = 0; i < journal.pending(); i++) {
+            Journal.Record record = journal.get(i);
+            addPending(record.user_id, record.is_deposit ? record.value : -record.value);
+        }
+        if (!journal.isEmpty()) {
+            logger.info(MarkerManager.getMarker("db"), journal.pending() + " offline transactions are waiting to be replayed.");
+        }
+
+        this.replayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "offline-journal-replayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        replayer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, 0, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the replayer and closes the journal. Records that have not been replayed stay in the
+     * journal until the next start.
+     */
+    @Override
+    public void close() {
+        replayer.shutdownNow();
+        try {
+            replayer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Failed to close the offline journal: " + e.getMessage());
+            }
+        }
+
+        delegate.close();
+    }
+
+    @Override
+    public User getOrCreate(String rfid) throws SQLException {
+        synchronized (this) {
+            if (!online && idsByRfid.containsKey(rfid)) return localUser(idsByRfid.get(rfid));
+        }
+
+        try {
+            return remember(delegate.getOrCreate(rfid), 0);
+        } catch (SQLException ex) {
+            checkConnection(ex);
+
+            synchronized (this) {
+                if (idsByRfid.containsKey(rfid)) return localUser(idsByRfid.get(rfid));
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public User getUser(int ecc) throws SQLException {
+        synchronized (this) {
+            if (!online && idsByEcc.containsKey(ecc)) return localUser(idsByEcc.get(ecc));
+        }
+
+        try {
+            return remember(delegate.getUser(ecc), ecc);
+        } catch (SQLException ex) {
+            checkConnection(ex);
+
+            synchronized (this) {
+                if (idsByEcc.containsKey(ecc)) return localUser(idsByEcc.get(ecc));
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean rfidExists(String rfid) throws SQLException {
+        synchronized (this) {
+            if (!online && idsByRfid.containsKey(rfid)) return true;
+        }
+
+        try {
+            return delegate.rfidExists(rfid);
+        } catch (SQLException ex) {
+            checkConnection(ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int makeDeposit(User user, int value) throws SQLException {
+        Integer balance = journalIfOffline(user.getId(), value, true);
+        if (balance != null) return balance;
+
+        try {
+            return updateKnownCredit(user.getId(), delegate.makeDeposit(user, value));
+        } catch (SQLException ex) {
+            checkConnection(ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int makePurchase(User user, int value) throws SQLException {
+        Integer balance = journalIfOffline(user.getId(), value, false);
+        if (balance != null) return balance;
+
+        try {
+            return updateKnownCredit(user.getId(), delegate.makePurchase(user, value));
+        } catch (SQLException ex) {
+            checkConnection(ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void updateUserRfid(int user_id, String rfid) throws SQLException {
+        delegate.updateUserRfid(user_id, rfid);
+
+        synchronized (this) {
+            User user = knownUsers.get(user_id);
+            if (user == null) return;
+
+            idsByRfid.remove(user.getRfid());
+            user.setRfid(rfid);
+            idsByRfid.put(rfid, user_id);
+        }
+    }
+
+    @Override
+    public boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        requireEmptyJournal();
+        boolean merged = delegate.mergeUser(toUser, fromUser);
+
+        synchronized (this) {
+            // The credit of the target changes too, so both are read again the next time they are used.
+            forget(toUser);
+            forget(fromUser);
+        }
+
+        return merged;
+    }
+
+    @Override
+    public int pruneInactiveRFIDs() throws SQLException {
+        // Users whose only transactions are in the journal would be pruned.
+        requireEmptyJournal();
+        return delegate.pruneInactiveRFIDs();
+    }
+
+    /**
+     * Changes to users are refused until the journal has been replayed, as they could make journaled
+     * records point at users that no longer exist.
+     *
+     * @throws SQLException if the journal is not empty
+     */
+    private synchronized void requireEmptyJournal() throws SQLException {
+        if (!journal.isEmpty()) {
+            throw new SQLException(journal.pending() + " offline transactions have not been written to the database yet.");
+        }
+    }
+
+    /**
+     * Writes a deposit or purchase to the journal if the database is offline or older records are
+     * still waiting to be replayed.
+     *
+     * @return The new local balance, -1 if the local balance is too low for the purchase, or null if
+     *         the database should be written to directly
+     * @throws SQLException if the user isn't known locally or the journal is full
+     */
+    private synchronized Integer journalIfOffline(int user_id, int value, boolean is_deposit) throws SQLException {
+        if (online && journal.isEmpty()) return null;
+
+        User user = knownUsers.get(user_id);
+        if (user == null) throw new SQLException("User " + user_id + " has not been seen since the database went offline.", "08003");
+
+        int balance = localCredit(user_id);
+        if (!is_deposit && balance < value) return -1;
+
+        if (!journal.append(new Journal.Record(user_id, user.getRfid(), value, is_deposit, System.currentTimeMillis()))) {
+            throw new SQLException("The offline journal is full.", "08003");
+        }
+
+        int change = is_deposit ? value : -value;
+        addPending(user_id, change);
+        return balance + change;
+    }
+
+    /**
+     * Replays a batch of journal records into the database. Runs on the replayer thread.
+     */
+    private void replay() {
+        try {
+            synchronized (this) {
+                if (online && journal.isEmpty()) return;
+            }
+
+            if (!delegate.testConnection()) return;
+
+            int replayed = 0;
+            while (replayed < REPLAY_BATCH_SIZE) {
+                Journal.Record record;
+                synchronized (this) {
+                    if (journal.isEmpty()) {
+                        if (!online) logger.info(MarkerManager.getMarker("db"), "Database is reachable again.");
+                        online = true;
+                        break;
+                    }
+                    record = journal.get(0);
+                }
+
+                int new_balance = apply(record);
+
+                synchronized (this) {
+                    journal.markReplayed();
+                    addPending(record.user_id, record.is_deposit ? -record.value : record.value);
+                    if (new_balance != Integer.MIN_VALUE) setKnownCredit(record.user_id, new_balance);
+                }
+                replayed++;
+            }
+
+            if (replayed > 0) {
+                synchronized (this) {
+                    logger.info(MarkerManager.getMarker("db"), String.format("Replayed %d offline transactions, %d left.", replayed, journal.pending()));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "Failed to replay offline transactions, retrying later.");
+            logger.error(ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            // Keep the replayer scheduled, an exception here would cancel it.
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes a journal record to the database.
+     *
+     * @return The new balance of the user, or Integer.MIN_VALUE if the user no longer exists
+     * @throws SQLException
+     */
+    private int apply(Journal.Record record) throws SQLException {
+        Timestamp date = new Timestamp(record.timestamp);
+        int new_balance = delegate.replayTransaction(record.user_id, record.value, record.is_deposit, date);
+
+        if (new_balance == Integer.MIN_VALUE) {
+            // Merged into another user or pruned by another till. Left in the log, as there is no one to write it to.
+            logger.error(MarkerManager.getMarker("db"), String.format("User %d (RFID '%s') no longer exists, offline %s of %d made %s was not written.",
+                    record.user_id, record.rfid, record.is_deposit ? "deposit" : "purchase", record.value, date));
+        }
+        else if (new_balance < 0) {
+            logger.warn(MarkerManager.getMarker("db"), String.format("Balance of RFID '%s' was too low for offline purchase of %d, recorded it anyway.",
+                    record.rfid, record.value));
+        }
+
+        return new_balance;
+    }
+
+    /**
+     * Goes offline if the exception means the database can't be reached.
+     */
+    private void checkConnection(SQLException ex) {
+        String state = ex.getSQLState();
+        if (state == null || !state.startsWith("08")) return;
+
+        synchronized (this) {
+            if (online) logger.warn(MarkerManager.getMarker("db"), "Lost connection to the database, continuing offline: " + ex.getMessage());
+            online = false;
+        }
+    }
+
+    private synchronized User remember(User user, int ecc) {
+        if (user == null) return null;
+
+        knownUsers.put(user.getId(), user);
+        idsByRfid.put(user.getRfid(), user.getId());
+        if (ecc != 0) idsByEcc.put(ecc, user.getId());
+
+        return localUser(user.getId());
+    }
+
+    private void forget(int user_id) {
+        User user = knownUsers.remove(user_id);
+        if (user == null) return;
+
+        idsByRfid.remove(user.getRfid());
+        idsByEcc.values().remove(user_id);
+    }
+
+    private synchronized int updateKnownCredit(int user_id, int credit) {
+        if (credit == -1) return -1;
+
+        setKnownCredit(user_id, credit);
+        return credit + pendingFor(user_id);
+    }
+
+    private void setKnownCredit(int user_id, int credit) {
+        User user = knownUsers.get(user_id);
+        if (user != null) {
+            knownUsers.put(user_id, new User(user.getId(), user.getRfid(), user.isStaff(), credit, user.getCreated(), user.getLastUsed(), user.getVersion() + 1));
+        }
+    }
+
+    /**
+     * @return The known user with the journaled changes applied to its credit
+     */
+    private User localUser(int user_id) {
+        User user = knownUsers.get(user_id);
+        if (pendingFor(user_id) == 0) return user;
+
+        return new User(user.getId(), user.getRfid(), user.isStaff(), localCredit(user_id), user.getCreated(), user.getLastUsed(), user.getVersion());
+    }
+
+    private int localCredit(int user_id) {
+        return knownUsers.get(user_id).getCredit() + pendingFor(user_id);
+    }
+
+    private int pendingFor(int user_id) {
+        Integer change = pending.get(user_id);
+        return change == null ? 0 : change;
+    }
+
+    private void addPending(int user_id, int change) {
+        int total = pendingFor(user_id) + change;
+
+        if (total == 0) pending.remove(user_id);
+        else pending.put(user_id, total);
+    }
+}
@@ -0,0 +1,1550 @@
+package org.ntnu.realfagskjelleren.rfid.db.sqliteimpl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.MigrationRunner;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.model.Version;
+import org.ntnu.realfagskjelleren.rfid.db.mysqlimpl.EccAllocator;
+
+import java.sql.*;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Implementation of DBHandler for an embedded SQLite database in a single file.
+ *
+ * The database is used through one long-lived connection in WAL mode with synchronous set to
+ * NORMAL, so a commit is an append to the write-ahead log without waiting for the disk. A power
+ * cut can lose the last few commits, but never corrupts the file. Calls are serialized on the
+ * handler, and prepared statements are kept for the lifetime of the connection.
+ *
+ * Dates are stored as milliseconds since the epoch, and the daily and hourly sales rollups use
+ * the local time zone like the MySQL implementation does.
+ *
+ * @author Håvard Slettvold
+ */
+public class SQLiteDBHandler implements DBHandler {
+
+    private static Logger logger = LogManager.getLogger(SQLiteDBHandler.class.getName());
+
+    // Migrations up to this version are part of the schema made by createDatabase.
+    private static final String SCHEMA_VERSION = "2.7";
+
+    // SQLite versions of every migration, by version. Databases created before a migration run it,
+    // newer ones get it from createDatabase. A migration without an entry here can't be applied.
+    private static final Map<String, String[]> MIGRATIONS = new HashMap<>();
+    static {
+        // Part of the schema of the first SQLite release.
+        for (String version : new String[]{"2.1", "2.2", "2.3", "2.4", "2.5", "2.6"}) {
+            MIGRATIONS.put(version, new String[0]);
+        }
+        MIGRATIONS.put("2.7", new String[]{
+                "ALTER TABLE `user` ADD COLUMN `version` INTEGER NOT NULL DEFAULT 0;"
+        });
+    }
+
+    private static final String NOW = "(CAST(strftime('%s', 'now') AS INTEGER) * 1000)";
+    // Days run from 09:00 to 08:59 the next day.
+    private static final String DAY_OF_DATE = "date(date / 1000 - 32400, 'unixepoch', 'localtime')";
+    private static final String HOUR_OF_DATE = "strftime('%Y-%m-%d %H:00:00', date / 1000, 'unixepoch', 'localtime')";
+
+    private final String file;
+    private final EccAllocator eccAllocator = new EccAllocator();
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private Connection con;
+
+    /**
+     * @param file Path of the database file, which is created if it doesn't exist
+     */
+    public SQLiteDBHandler(String file) {
+        this.file = file;
+    }
+
+    public synchronized boolean testConnection() {
+        try (Statement st = getConnection().createStatement();
+             ResultSet rs = st.executeQuery("SELECT sqlite_version();")) {
+
+            if (rs.next()) {
+                logger.debug("SQLite running version: " + rs.getString(1));
+                return true;
+            }
+        } catch (SQLException e) {
+            logger.error(e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates the tables at the newest schema. A new database is recorded as being at every
+     * migration up to the schema version, so the migration runner leaves it alone.
+     *
+     * @return true if the tables exist
+     */
+    public synchronized boolean createDatabase() {
+        String[] CREATE_SCHEMA_QS = new String[]{
+                "CREATE TABLE IF NOT EXISTS `user` (" +
+                "  `id` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "  `rfid` TEXT NOT NULL UNIQUE," +
+                "  `ecc` INTEGER NOT NULL UNIQUE," +
+                "  `credit` INTEGER NOT NULL," +
+                "  `is_staff` INTEGER NOT NULL DEFAULT 0," +
+                "  `created` INTEGER NOT NULL," +
+                "  `last_used` INTEGER NOT NULL DEFAULT " + NOW + "," +
+                "  `lifetime_spent` INTEGER NOT NULL DEFAULT 0," +
+                "  `version` INTEGER NOT NULL DEFAULT 0" +
+                ");",
+                "CREATE INDEX IF NOT EXISTS lifetime_spent_ind ON `user` (lifetime_spent);",
+                // Stands in for MySQL's ON UPDATE CURRENT_TIMESTAMP, but only when the card is used, so
+                // bookkeeping such as rebuilding lifetime_spent keeps last_used. Dropped first to
+                // replace the trigger of older databases, which fired on every update.
+                "DROP TRIGGER IF EXISTS user_last_used;",
+                "CREATE TRIGGER user_last_used AFTER UPDATE OF credit, rfid ON `user` " +
+                "FOR EACH ROW WHEN NEW.last_used = OLD.last_used " +
+                "BEGIN UPDATE `user` SET last_used = " + NOW + " WHERE id = NEW.id; END;",
+                "CREATE TABLE IF NOT EXISTS `transaction` (" +
+                "  `id` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "  `user_id` INTEGER NOT NULL REFERENCES `user` (id) ON DELETE CASCADE," +
+                "  `value` INTEGER NOT NULL," +
+                "  `is_deposit` INTEGER NOT NULL DEFAULT 0," +
+                "  `new_balance` INTEGER NOT NULL," +
+                "  `date` INTEGER NOT NULL DEFAULT " + NOW +
+                ");",
+                "CREATE INDEX IF NOT EXISTS date_ind ON `transaction` (date);",
+                "CREATE INDEX IF NOT EXISTS user_id_ind ON `transaction` (user_id, id);",
+                "CREATE TABLE IF NOT EXISTS `version` (" +
+                "  `id` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "  `version` TEXT NOT NULL," +
+                "  `executed_on` INTEGER NOT NULL DEFAULT " + NOW + "," +
+                "  `checksum` TEXT NULL" +
+                ");",
+                "CREATE TABLE IF NOT EXISTS `log` (" +
+                "  `id` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "  `message` TEXT NOT NULL," +
+                "  `date` INTEGER NOT NULL DEFAULT " + NOW +
+                ");",
+                "CREATE TABLE IF NOT EXISTS `sales_daily` (" +
+                "  `day` TEXT NOT NULL PRIMARY KEY," +
+                "  `sales` INTEGER NOT NULL DEFAULT 0" +
+                ");",
+                "CREATE INDEX IF NOT EXISTS sales_ind ON `sales_daily` (sales);",
+                "CREATE TABLE IF NOT EXISTS `sales_hourly` (" +
+                "  `hour` TEXT NOT NULL PRIMARY KEY," +
+                "  `sales` INTEGER NOT NULL DEFAULT 0" +
+                ");"
+        };
+        String TABLE_EXISTS_QS = "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'version';";
+        String SET_VERSION_QS = "INSERT INTO `version` (version, checksum) VALUES (?, ?);";
+
+        try (Statement st = getConnection().createStatement()) {
+            boolean isNew;
+            try (ResultSet rs = st.executeQuery(TABLE_EXISTS_QS)) {
+                rs.next();
+                isNew = rs.getInt(1) == 0;
+            }
+
+            con.setAutoCommit(false);
+            try {
+                for (String query : CREATE_SCHEMA_QS) {
+                    st.executeUpdate(query);
+                }
+
+                if (isNew) {
+                    PreparedStatement ps = prepare(SET_VERSION_QS);
+                    ps.setString(1, "2.0");
+                    ps.setString(2, null);
+                    ps.executeUpdate();
+
+                    for (Migration migration : MigrationRunner.migrations()) {
+                        if (Migration.compareVersions(migration.getVersion(), SCHEMA_VERSION) > 0) break;
+
+                        ps.setString(1, migration.getVersion());
+                        ps.setString(2, migration.getChecksum());
+                        ps.executeUpdate();
+                    }
+                    logger.debug(MarkerManager.getMarker("db"), "Created new SQLite database at version " + SCHEMA_VERSION + ".");
+                }
+
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+
+            return true;
+
+        } catch (SQLException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the current version from the database.
+     *
+     * @return Version object with information about version of the database
+     */
+    @Override
+    public synchronized Version getVersion() {
+        String GET_VERSION_QS = "SELECT * FROM `version` ORDER BY id DESC LIMIT 1;";
+        try (ResultSet rs = prepare(GET_VERSION_QS).executeQuery()) {
+
+            if (rs.next()) {
+                return new Version(rs.getString("version"), rs.getTimestamp("executed_on"), rs.getString("checksum"));
+            }
+
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "SQL error occurred while attempting to get version.");
+            logger.error(ex.getMessage(), ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds every version the database has been at, oldest first.
+     *
+     * @return List of versions, or null if they could not be read
+     */
+    @Override
+    public synchronized List<Version> getVersionHistory() {
+        List<Version> versions = new ArrayList<>();
+
+        String GET_VERSION_HISTORY_QS = "SELECT * FROM `version` ORDER BY id;";
+        try (ResultSet rs = prepare(GET_VERSION_HISTORY_QS).executeQuery()) {
+
+            while (rs.next()) {
+                versions.add(new Version(rs.getString("version"), rs.getTimestamp("executed_on"), rs.getString("checksum")));
+            }
+
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "SQL error occurred while attempting to get version history.");
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+
+        return versions;
+    }
+
+    /**
+     * Inserts a version entry into the database.
+     *
+     * @param version Version to be set
+     * @return True if version was set
+     */
+    @Override
+    public synchronized boolean setVersion(String version) {
+        String SET_VERSION_QS = "INSERT INTO `version` (version) VALUES (?);";
+        try {
+            PreparedStatement ps = prepare(SET_VERSION_QS);
+            ps.setString(1, version);
+            ps.executeUpdate();
+
+            return true;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs the SQLite version of a migration and records its version and checksum, in one transaction.
+     * Migrations are written in MySQL dialect, so what runs here is the entry in {@link #MIGRATIONS}.
+     * A migration without one fails, rather than being recorded as applied to a schema it never
+     * changed.
+     *
+     * @param migration Migration to apply
+     * @return True if the migration was applied
+     */
+    @Override
+    public synchronized boolean applyMigration(Migration migration) {
+        String SET_VERSION_QS = "INSERT INTO `version` (version, checksum) VALUES (?, ?);";
+        String[] queries = MIGRATIONS.get(migration.getVersion());
+        if (queries == null) {
+            logger.error(MarkerManager.getMarker("db"), "Migration " + migration + " has no SQLite version.");
+            return false;
+        }
+
+        try (Statement st = getConnection().createStatement()) {
+            con.setAutoCommit(false);
+            try {
+                for (String query : queries) {
+                    st.executeUpdate(query);
+                }
+
+                PreparedStatement ps = prepare(SET_VERSION_QS);
+                ps.setString(1, migration.getVersion());
+                ps.setString(2, migration.getChecksum());
+                ps.executeUpdate();
+
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+
+            return true;
+        } catch (SQLException ex) {
+            logger.error(MarkerManager.getMarker("db"), "SQL error occurred while applying migration " + migration + ".");
+            logger.error(ex.getMessage(), ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * Closes the prepared statements and the connection, which checkpoints the write-ahead log into
+     * the database file.
+     */
+    @Override
+    public synchronized void close() {
+        if (con == null) return;
+
+        try {
+            for (PreparedStatement ps : statements.values()) {
+                ps.close();
+            }
+            statements.clear();
+            con.close();
+        } catch (SQLException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+
+        con = null;
+    }
+
+    /**
+     * Opens the connection the first time it is needed, and sets it up for WAL mode.
+     *
+     * @return Connection to the database
+     * @throws SQLException
+     */
+    private Connection getConnection() throws SQLException {
+        if (con != null) return con;
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite driver is not available.", e);
+        }
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+        try (Statement st = connection.createStatement()) {
+            st.execute("PRAGMA journal_mode = WAL;");
+            st.execute("PRAGMA synchronous = NORMAL;");
+            st.execute("PRAGMA foreign_keys = ON;");
+        } catch (SQLException ex) {
+            connection.close();
+            throw ex;
+        }
+
+        logger.debug(MarkerManager.getMarker("db"), "Opened SQLite database '" + file + "'.");
+        con = connection;
+        return con;
+    }
+
+    /**
+     * Prepares a statement once and reuses it for as long as the connection is open.
+     *
+     * @param sql SQL of the statement
+     * @return Prepared statement, which must not be closed
+     * @throws SQLException
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+
+        if (ps == null) {
+            ps = getConnection().prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+
+        return ps;
+    }
+
+    private User readUser(ResultSet rs) throws SQLException {
+        return new User(
+                rs.getInt("id"),
+                rs.getString("rfid"),
+                rs.getBoolean("is_staff"),
+                rs.getInt("credit"),
+                rs.getTimestamp("created"),
+                rs.getTimestamp("last_used"),
+                rs.getInt("version")
+        );
+    }
+
+    private Transaction readTransaction(ResultSet rs) throws SQLException {
+        return new Transaction(
+                rs.getInt("id"),
+                rs.getInt("user_id"),
+                rs.getString("rfid"),
+                rs.getInt("value"),
+                rs.getInt("new_balance"),
+                rs.getBoolean("is_deposit"),
+                rs.getTimestamp("date")
+        );
+    }
+
+    /**
+     * This method creates a {@link User} object based on database information.
+     * If no user matches the given rfid, one will be created first.
+     *
+     * @param rfid Lookup parameter for a user
+     * @return {@link User} object
+     * @throws java.sql.SQLException
+     */
+    @Override
+    public synchronized User getOrCreate(String rfid) throws SQLException {
+        String GET_USER_BY_RFID_QS = "SELECT * FROM `user` WHERE rfid = ?;";
+        String CREATE_USER_QS = "INSERT INTO `user` (credit, rfid, ecc, is_staff, created, last_used) VALUES (0, ?, ?, 0, ?, ?);";
+        String LAST_ID_QS = "SELECT last_insert_rowid();";
+
+        try {
+            PreparedStatement ps = prepare(GET_USER_BY_RFID_QS);
+            ps.setString(1, rfid);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return readUser(rs);
+            }
+
+            Timestamp created = new Timestamp(System.currentTimeMillis());
+            int ecc = makeECC();
+
+            try {
+                ps = prepare(CREATE_USER_QS);
+                ps.setString(1, rfid);
+                ps.setInt(2, ecc);
+                ps.setTimestamp(3, created);
+                ps.setTimestamp(4, created);
+                ps.executeUpdate();
+            } catch (SQLException ex) {
+                eccAllocator.release(ecc);
+                throw ex;
+            }
+
+            try (ResultSet rs = prepare(LAST_ID_QS).executeQuery()) {
+                rs.next();
+                return new User(rs.getInt(1), rfid, false, 0, created, created);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to retrieve or create user for RFID '%s'.", rfid));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Finds a {@link User} based on that user's ECC number.
+     *
+     * @param ecc ECC String
+     * @return {@link User} object that matched ECC or null
+     * @throws SQLException
+     */
+    @Override
+    public synchronized User getUser(int ecc) throws SQLException {
+        String GET_USER_BY_ECC_QS = "SELECT * FROM `user` WHERE ecc = ?;";
+        try {
+            PreparedStatement ps = prepare(GET_USER_BY_ECC_QS);
+            ps.setInt(1, ecc);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return readUser(rs);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to retrieve user for ECC '%d'.", ecc));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return null;
+    }
+
+    /**
+     * This will override the RFID registered on a user.
+     *
+     * @param user_id
+     * @param rfid
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void updateUserRfid(int user_id, String rfid) throws SQLException {
+        String UPDATE_USER_RFID_QS = "UPDATE `user` SET rfid = ? WHERE id = ?;";
+        try {
+            PreparedStatement ps = prepare(UPDATE_USER_RFID_QS);
+            ps.setString(1, rfid);
+            ps.setInt(2, user_id);
+            ps.executeUpdate();
+
+        } catch (SQLException ex) {
+            logger.error("Failed to update RFID.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Check if a rfid matches a {@link User}
+     *
+     * @param rfid RFID to check
+     * @return True if RFID belongs to a {@link User}
+     * @throws SQLException
+     */
+    @Override
+    public synchronized boolean rfidExists(String rfid) throws SQLException {
+        String EXISTS_RFID_QS = "SELECT COUNT(*) FROM `user` WHERE rfid = ?;";
+        try {
+            PreparedStatement ps = prepare(EXISTS_RFID_QS);
+            ps.setString(1, rfid);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to retrieve user for RFID '%s'.", rfid));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Check if an ECC matches a {@link User}
+     *
+     * @param ecc ECC number to check
+     * @return True if ECC belongs to a {@link User}
+     * @throws SQLException
+     */
+    @Override
+    public synchronized boolean eccExists(int ecc) throws SQLException {
+        String EXISTS_ECC_QS = "SELECT COUNT(*) FROM `user` WHERE ecc = ?;";
+        try {
+            PreparedStatement ps = prepare(EXISTS_ECC_QS);
+            ps.setInt(1, ecc);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to retrieve user for ECC '%d'.", ecc));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Merges two user accounts. This moves all transactions, the credit and the lifetime spending to the
+     * toRFID and afterwards removes fromRFID from the DB, all in one database transaction.
+     *
+     * @param toUser target for the merge
+     * @param fromUser undesired RFID
+     * @throws SQLException
+     */
+    @Override
+    public synchronized boolean mergeUser(int toUser, int fromUser) throws SQLException {
+        String CHANGE_TRANSACTION_OWNER_QS = "UPDATE `transaction` SET user_id = ? WHERE user_id = ?;";
+        String MOVE_CREDIT_AND_LIFETIME_SPENT_QS = "UPDATE `user` SET " +
+                                                   "credit = credit + (SELECT credit FROM `user` WHERE id = ?1), " +
+                                                   "version = version + 1, " +
+                                                   "lifetime_spent = lifetime_spent + (SELECT lifetime_spent FROM `user` WHERE id = ?1) " +
+                                                   "WHERE id = ?2;";
+        String DELETE_USER_QS = "DELETE FROM `user` WHERE id = ?;";
+
+        try {
+            getConnection().setAutoCommit(false);
+            try {
+                PreparedStatement ps = prepare(CHANGE_TRANSACTION_OWNER_QS);
+                ps.setInt(1, toUser);
+                ps.setInt(2, fromUser);
+                ps.executeUpdate();
+
+                ps = prepare(MOVE_CREDIT_AND_LIFETIME_SPENT_QS);
+                ps.setInt(1, fromUser);
+                ps.setInt(2, toUser);
+                ps.executeUpdate();
+
+                ps = prepare(DELETE_USER_QS);
+                ps.setInt(1, fromUser);
+                ps.executeUpdate();
+
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to merge UserID '%s' with '%s'.", fromUser, toUser));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return true;
+    }
+
+    /**
+     * Deposits money into a user's account.
+     *
+     * @param rfid RFID of the user
+     * @param value value to be inserted
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void deposit(String rfid, int value) throws SQLException {
+        String DEPOSIT_QS = "UPDATE `user` SET credit = credit+?, version = version+1 WHERE rfid = ?;";
+        try {
+            PreparedStatement ps = prepare(DEPOSIT_QS);
+            ps.setInt(1, value);
+            ps.setString(2, rfid);
+            ps.executeUpdate();
+
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deposit amount to RFID '%s'.", rfid));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Deducts money from a user's account. This means withdrawing.
+     *
+     * @param rfid RFID of the user
+     * @param value value to be deducted
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void deduct(String rfid, int value) throws SQLException {
+        String DEDUCT_QS = "UPDATE `user` SET credit = credit-?, version = version+1 WHERE rfid = ?;";
+        try {
+            PreparedStatement ps = prepare(DEDUCT_QS);
+            ps.setInt(1, value);
+            ps.setString(2, rfid);
+            ps.executeUpdate();
+
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deduct amount from RFID '%s'.", rfid));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Deposits money into a user's account and logs the transaction, all in one database transaction.
+     *
+     * @param user The {@link User} to deposit to
+     * @param value value to be inserted
+     * @return The new balance of the user
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int makeDeposit(User user, int value) throws SQLException {
+        try {
+            int new_balance = updateCreditAndLog(user.getId(), value, true, new Timestamp(System.currentTimeMillis()), false);
+            return new_balance == Integer.MIN_VALUE ? -1 : new_balance;
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deposit amount to User '%d'.", user.getId()));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Withdraws money from a user's account and logs the transaction, all in one database transaction.
+     * The withdrawal only happens if the user has enough credit for it.
+     *
+     * @param user The {@link User} to deduct from
+     * @param value value to be deducted
+     * @return The new balance of the user, or -1 if the balance was too low for the purchase
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int makePurchase(User user, int value) throws SQLException {
+        try {
+            int new_balance = updateCreditAndLog(user.getId(), value, false, new Timestamp(System.currentTimeMillis()), false);
+            return new_balance == Integer.MIN_VALUE ? -1 : new_balance;
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to deduct amount from User '%d'.", user.getId()));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a deposit or purchase made while the database was offline, dated when it was made, so the
+     * rollups count it on the day and hour it happened. Purchases are written whatever the balance, the
+     * goods have been handed over already.
+     *
+     * @param user_id ID of the {@link User}
+     * @param value value deposited or spent
+     * @param is_deposit true for a deposit
+     * @param date When the transaction was made
+     * @return The new balance of the user, which may be below zero, or Integer.MIN_VALUE if the user doesn't exist
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+        try {
+            return updateCreditAndLog(user_id, value, is_deposit, date, true);
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to replay offline transaction for User '%d'.", user_id));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Updates the credit of a user, reads back the resulting balance and inserts the transaction log row
+     * with it, committing once. Purchases only update the credit if it is high enough, otherwise nothing
+     * is changed. Purchases are also added to the user's lifetime spending and the sales rollup tables in
+     * the same transaction.
+     *
+     * @param date Date of the transaction log row, which decides the rollups it is counted in
+     * @param anyBalance true to make a purchase even if the credit is too low for it
+     * @return The new balance, or Integer.MIN_VALUE if the update did not match a row
+     * @throws SQLException
+     */
+    private int updateCreditAndLog(int user_id, int value, boolean is_deposit, Timestamp date, boolean anyBalance) throws SQLException {
+        String DEPOSIT_QS = "UPDATE `user` SET credit = credit+?, version = version+1 WHERE id = ?;";
+        String PURCHASE_QS = "UPDATE `user` SET credit = credit-?, version = version+1, lifetime_spent = lifetime_spent+? WHERE id = ? AND credit >= ?;";
+        String GET_CREDIT_QS = "SELECT credit FROM `user` WHERE id = ?;";
+        String TRANSACTION_QS = "INSERT INTO `transaction` (user_id, value, is_deposit, new_balance, date) VALUES (?, ?, ?, ?, ?);";
+        // Read the row just inserted, so the rollups use exactly the same date and rules as a rebuild would.
+        String ENSURE_DAY_QS = "INSERT OR IGNORE INTO sales_daily (day, sales) " +
+                               "SELECT " + DAY_OF_DATE + ", 0 FROM `transaction` WHERE id = ?;";
+        String ADD_DAILY_SALES_QS = "UPDATE sales_daily SET sales = sales + ? " +
+                                    "WHERE day = (SELECT " + DAY_OF_DATE + " FROM `transaction` WHERE id = ?);";
+        String ENSURE_HOUR_QS = "INSERT OR IGNORE INTO sales_hourly (hour, sales) " +
+                                "SELECT " + HOUR_OF_DATE + ", 0 FROM `transaction` WHERE id = ?;";
+        String ADD_HOURLY_SALES_QS = "UPDATE sales_hourly SET sales = sales + ? " +
+                                     "WHERE hour = (SELECT " + HOUR_OF_DATE + " FROM `transaction` WHERE id = ?);";
+        String LAST_ID_QS = "SELECT last_insert_rowid();";
+
+        getConnection().setAutoCommit(false);
+        try {
+            PreparedStatement ps = prepare(is_deposit ? DEPOSIT_QS : PURCHASE_QS);
+            if (is_deposit) {
+                ps.setInt(1, value);
+                ps.setInt(2, user_id);
+            }
+            else {
+                ps.setInt(1, value);
+                // Amounts of 1000 or more are left out of all spending statistics.
+                ps.setInt(2, value < 1000 ? value : 0);
+                ps.setInt(3, user_id);
+                // Any balance is at least Integer.MIN_VALUE.
+                ps.setInt(4, anyBalance ? Integer.MIN_VALUE : value);
+            }
+            if (ps.executeUpdate() == 0) {
+                con.rollback();
+                return Integer.MIN_VALUE;
+            }
+
+            int new_balance;
+            ps = prepare(GET_CREDIT_QS);
+            ps.setInt(1, user_id);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                new_balance = rs.getInt("credit");
+            }
+
+            ps = prepare(TRANSACTION_QS);
+            ps.setInt(1, user_id);
+            ps.setInt(2, value);
+            ps.setBoolean(3, is_deposit);
+            ps.setInt(4, new_balance);
+            ps.setTimestamp(5, date);
+            ps.executeUpdate();
+
+            if (!is_deposit && value < 1000) {
+                int transaction_id;
+                try (ResultSet rs = prepare(LAST_ID_QS).executeQuery()) {
+                    rs.next();
+                    transaction_id = rs.getInt(1);
+                }
+
+                ps = prepare(ENSURE_DAY_QS);
+                ps.setInt(1, transaction_id);
+                ps.executeUpdate();
+                ps = prepare(ADD_DAILY_SALES_QS);
+                ps.setInt(1, value);
+                ps.setInt(2, transaction_id);
+                ps.executeUpdate();
+
+                ps = prepare(ENSURE_HOUR_QS);
+                ps.setInt(1, transaction_id);
+                ps.executeUpdate();
+                ps = prepare(ADD_HOURLY_SALES_QS);
+                ps.setInt(1, value);
+                ps.setInt(2, transaction_id);
+                ps.executeUpdate();
+            }
+
+            con.commit();
+            return new_balance;
+        } catch (SQLException ex) {
+            con.rollback();
+            throw ex;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * This command will fetch all users stored in the database ordered by when they
+     * were last used.
+     *
+     * @return List of users
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<User> getAllUsers() throws SQLException {
+        List<User> users = new ArrayList<>();
+
+        String GET_ALL_USERS_QS = "SELECT * FROM `user` ORDER BY last_used;";
+        try (ResultSet rs = prepare(GET_ALL_USERS_QS).executeQuery()) {
+            while (rs.next()) {
+                users.add(readUser(rs));
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to retrieve all users.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return users;
+    }
+
+    /**
+     * Fetches up to 'amount' users in order of when they were last used, starting after the given user.
+     * Users last used at the same time are ordered by id, so the last user on a page is enough to find
+     * the next page.
+     *
+     * @param user Last user on the previous page, or null for the first page
+     * @param amount Number of users to retrieve
+     * @return List of users
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<User> getUsersAfter(User user, int amount) throws SQLException {
+        List<User> users = new ArrayList<>();
+
+        String GET_FIRST_USERS_QS = "SELECT * FROM `user` ORDER BY last_used, id LIMIT ?;";
+        String GET_USERS_AFTER_QS = "SELECT * FROM `user` WHERE last_used > ? OR (last_used = ? AND id > ?) ORDER BY last_used, id LIMIT ?;";
+        try {
+            PreparedStatement ps;
+            if (user == null) {
+                ps = prepare(GET_FIRST_USERS_QS);
+                ps.setInt(1, amount);
+            }
+            else {
+                ps = prepare(GET_USERS_AFTER_QS);
+                ps.setLong(1, user.getLastUsed().getTime());
+                ps.setLong(2, user.getLastUsed().getTime());
+                ps.setInt(3, user.getId());
+                ps.setInt(4, amount);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    users.add(readUser(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to retrieve users.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return users;
+    }
+
+    /**
+     * Get a count of all users stored in the database.
+     *
+     * @return Integer amount of all users
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int getUserCount() throws SQLException {
+        String USER_COUNT_QS = "SELECT COUNT(*) FROM `user`;";
+        try (ResultSet rs = prepare(USER_COUNT_QS).executeQuery()) {
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to obtain user count.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the total value of the combined credit of all users.
+     *
+     * @return Value stored in the system
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int getTotalValue() throws SQLException {
+        String TOTAL_VALUE_QS = "SELECT ABS(SUM(credit)) AS total FROM `user`;";
+        try (ResultSet rs = prepare(TOTAL_VALUE_QS).executeQuery()) {
+            if (rs.next()) {
+                return rs.getInt("total");
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to obtain total value.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Fetches the last 'amount' transactions from the database.
+     *
+     * @param amount The amount fo transactions to return
+     * @return List of Transaction objects
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactions(int amount) throws SQLException {
+        List<Transaction> transactions = new ArrayList<>();
+
+        String GET_TRANSACTIONS_QS = "SELECT t.*, u.rfid " +
+                                     "FROM `transaction` AS t " +
+                                     "INNER JOIN `user` AS u " +
+                                     "ON t.user_id = u.id " +
+                                     "ORDER BY t.id DESC LIMIT ?;";
+        try {
+            PreparedStatement ps = prepare(GET_TRANSACTIONS_QS);
+            ps.setInt(1, amount);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(readTransaction(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Retrieves transactions from the database from a specified time window.
+     *
+     * @param hours Hours back in time to look
+     * @return List of Transaction objects
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactionsFromLastHours(int hours) throws SQLException {
+        List<Transaction> transactions = new ArrayList<>();
+
+        String GET_TRANSACTIONS_FROM_LAST_HOURS_QS = "SELECT t.*, u.rfid " +
+                                     "FROM `transaction` AS t " +
+                                     "INNER JOIN `user` AS u " +
+                                     "ON t.user_id = u.id " +
+                                     "WHERE t.date > ?;";
+        try {
+            PreparedStatement ps = prepare(GET_TRANSACTIONS_FROM_LAST_HOURS_QS);
+            ps.setLong(1, System.currentTimeMillis() - hours * 3600000L);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(readTransaction(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Streams transactions from the database from a specified time window.
+     *
+     * @param hours Hours back in time to look
+     * @param visitor Visitor to hand each transaction to
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void visitTransactionsFromLastHours(int hours, RowVisitor<Transaction> visitor) throws SQLException {
+        String GET_TRANSACTIONS_FROM_LAST_HOURS_QS = "SELECT t.*, u.rfid " +
+                                     "FROM `transaction` AS t " +
+                                     "INNER JOIN `user` AS u " +
+                                     "ON t.user_id = u.id " +
+                                     "WHERE t.date > ?;";
+        try {
+            PreparedStatement ps = prepare(GET_TRANSACTIONS_FROM_LAST_HOURS_QS);
+            ps.setLong(1, System.currentTimeMillis() - hours * 3600000L);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (!visitor.visit(readTransaction(rs))) return;
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        visitor.done();
+    }
+
+    /**
+     * Fetches the last 'amount' transactions from the database which matches the supplied user.
+     *
+     * @param user_id ID of the user to filter on
+     * @param amount The amount fo transactions to return
+     * @return List of Transaction objects
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactions(int user_id, int amount) throws SQLException {
+        List<Transaction> transactions = new ArrayList<>();
+
+        String GET_TRANSACTIONS_BY_USER_QS = "SELECT t.*, u.rfid FROM `transaction` AS t INNER JOIN `user` AS u ON t.user_id = u.id WHERE u.id = ? ORDER BY t.id DESC LIMIT ?;";
+        try {
+            PreparedStatement ps = prepare(GET_TRANSACTIONS_BY_USER_QS);
+            ps.setInt(1, user_id);
+            ps.setInt(2, amount);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(readTransaction(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Fetches up to 'amount' transactions made before the transaction with the given id.
+     * Use the id of the oldest transaction on a page to get the page before it.
+     *
+     * @param id Id of the transaction to page back from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactionsBefore(int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BEFORE_QS = "SELECT t.*, u.rfid FROM `transaction` AS t INNER JOIN `user` AS u ON t.user_id = u.id WHERE t.id < ? ORDER BY t.id DESC LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BEFORE_QS, false, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions by the supplied user made before the transaction with the given id.
+     *
+     * @param user_id Id of the user
+     * @param id Id of the transaction to page back from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactionsBefore(int user_id, int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BY_USER_BEFORE_QS = "SELECT t.*, u.rfid FROM `transaction` AS t INNER JOIN `user` AS u ON t.user_id = u.id WHERE t.user_id = ? AND t.id < ? ORDER BY t.id DESC LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BY_USER_BEFORE_QS, false, user_id, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions made after the transaction with the given id.
+     * Use the id of the newest transaction on a page to get the page after it.
+     *
+     * @param id Id of the transaction to page forward from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactionsAfter(int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_AFTER_QS = "SELECT t.*, u.rfid FROM `transaction` AS t INNER JOIN `user` AS u ON t.user_id = u.id WHERE t.id > ? ORDER BY t.id LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_AFTER_QS, true, id, amount);
+    }
+
+    /**
+     * Fetches up to 'amount' transactions by the supplied user made after the transaction with the given id.
+     *
+     * @param user_id Id of the user
+     * @param id Id of the transaction to page forward from
+     * @param amount Number of transactions to retrieve
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<Transaction> getTransactionsAfter(int user_id, int id, int amount) throws SQLException {
+        String GET_TRANSACTIONS_BY_USER_AFTER_QS = "SELECT t.*, u.rfid FROM `transaction` AS t INNER JOIN `user` AS u ON t.user_id = u.id WHERE t.user_id = ? AND t.id > ? ORDER BY t.id LIMIT ?;";
+        return getTransactionPage(GET_TRANSACTIONS_BY_USER_AFTER_QS, true, user_id, id, amount);
+    }
+
+    /**
+     * Runs a keyset paginated transaction query. The query seeks straight to the id the page starts
+     * at in the primary key or the (user_id, id) index, so paging deep into the history reads no more
+     * rows than the first page does, unlike OFFSET.
+     *
+     * @param query Query taking the params in order
+     * @param ascending Whether the query reads oldest first, in which case the page is reversed
+     * @param params Integer parameters of the query
+     * @return List of Transaction objects, newest first
+     * @throws SQLException
+     */
+    private List<Transaction> getTransactionPage(String query, boolean ascending, int... params) throws SQLException {
+        List<Transaction> transactions = new ArrayList<>();
+
+        try {
+            PreparedStatement ps = prepare(query);
+            for (int i = 0; i < params.length; i++) {
+                ps.setInt(i + 1, params[i]);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(readTransaction(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        if (ascending) Collections.reverse(transactions);
+        return transactions;
+    }
+
+    /**
+     * Fetches the sales for a specified date from the daily sales rollup.
+     * Days run from 09:00 to 08:59 the next day.
+     *
+     * @param date Date to look up
+     * @return String in the format; "date|sales"
+     * @throws SQLException
+     */
+    @Override
+    public synchronized String getSalesForDate(String date) throws SQLException {
+        String SALES_FOR_DATE = "SELECT day, sales FROM sales_daily WHERE day = ?;";
+        try {
+            PreparedStatement ps = prepare(SALES_FOR_DATE);
+            ps.setString(1, date);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return formatDay(rs.getString("day")) +"|"+ rs.getInt("sales");
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not retrieve transactions.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns all days the system has been used and how much the sales were that day,
+     * read from the daily sales rollup.
+     *
+     * @return List of Strings in the format: "# | date | sales"
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<String> topDays() throws SQLException {
+        List<String> topDays = new ArrayList<>();
+
+        String TOP_DAYS_QS = "SELECT day, sales " +
+                             "FROM sales_daily " +
+                             "WHERE sales > 0 " +
+                             "ORDER BY sales DESC;";
+        try (ResultSet rs = prepare(TOP_DAYS_QS).executeQuery()) {
+            int i = 0;
+            while (rs.next()) {
+                i++;
+                topDays.add(i +"|"+ formatDay(rs.getString("day")) +"|"+ rs.getInt("sales"));
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not generate top days.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return topDays;
+    }
+
+    /**
+     * SQLite has no names for weekdays, so days are formatted like MySQL's '%W %d-%m-%Y' here.
+     *
+     * @param day Day as yyyy-MM-dd
+     * @return Day as for instance "Monday 18-10-2026"
+     */
+    private String formatDay(String day) {
+        DateFormat in = new SimpleDateFormat("yyyy-MM-dd");
+        DateFormat out = new SimpleDateFormat("EEEE dd-MM-yyyy", Locale.ENGLISH);
+
+        try {
+            return out.format(in.parse(day));
+        } catch (ParseException e) {
+            return day;
+        }
+    }
+
+    /**
+     * Fetches the total amount spent by a user from the user's lifetime spending counter.
+     *
+     * @param rfid RFID to look up
+     * @return sum of all purchases
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int totalSpendings(String rfid) throws SQLException {
+        String TOTAL_SPENDINGS_QS = "SELECT lifetime_spent FROM `user` WHERE rfid = ?;";
+        try {
+            PreparedStatement ps = prepare(TOTAL_SPENDINGS_QS);
+            ps.setString(1, rfid);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("lifetime_spent");
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Could not fetch total spendings for %s.", rfid));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Makes a list of the top ten spenders through all time, using the indexed lifetime spending counter.
+     *
+     * @return List of strings: "RFID|Amount"
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<String> getTopTen() throws SQLException {
+        List<String> topTen = new ArrayList<>();
+
+        String TOP_TEN_QS = "SELECT rfid, lifetime_spent AS spent " +
+                            "FROM `user` " +
+                            "WHERE lifetime_spent > 0 " +
+                            "ORDER BY lifetime_spent DESC " +
+                            "LIMIT 10;";
+        try (ResultSet rs = prepare(TOP_TEN_QS).executeQuery()) {
+            while (rs.next()) {
+                topTen.add(rs.getString("rfid") +"|"+ rs.getInt("spent"));
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not generate top ten.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return topTen;
+    }
+
+    /**
+     * Makes a list of the top ten spenders over the last hours.
+     *
+     * @param hours Hours to include
+     * @return List of strings: "RFID|Amount"
+     * @throws SQLException
+     */
+    @Override
+    public synchronized List<String> getTopTenFromLastHours(int hours) throws SQLException {
+        List<String> topTen = new ArrayList<>();
+
+        String TOP_TEN_QS = "SELECT ABS(SUM(t.value)) AS spent, u.rfid " +
+                            "FROM `transaction` AS t " +
+                            "INNER JOIN `user` AS u " +
+                            "ON t.user_id = u.id " +
+                            "WHERE t.is_deposit != 1 AND t.date > ? " +
+                            "GROUP BY u.rfid " +
+                            "ORDER BY spent DESC " +
+                            "LIMIT 10;";
+        try {
+            PreparedStatement ps = prepare(TOP_TEN_QS);
+            ps.setLong(1, System.currentTimeMillis() - hours * 3600000L);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    topTen.add(rs.getString("rfid") +"|"+ rs.getInt("spent"));
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Could not generate top ten.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return topTen;
+    }
+
+    /**
+     * Recomputes the daily and hourly sales rollups and the lifetime spending of every user from the
+     * transaction table.
+     * Only needed if transactions were written without going through makePurchase, like after an import.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void rebuildStatistics() throws SQLException {
+        String[] REBUILD_QS = new String[]{
+                "DELETE FROM sales_daily;",
+                "INSERT INTO sales_daily (day, sales) " +
+                "SELECT " + DAY_OF_DATE + ", SUM(value) FROM `transaction` " +
+                "WHERE is_deposit != 1 AND value < 1000 " +
+                "GROUP BY " + DAY_OF_DATE + ";",
+                "DELETE FROM sales_hourly;",
+                "INSERT INTO sales_hourly (hour, sales) " +
+                "SELECT " + HOUR_OF_DATE + ", SUM(value) FROM `transaction` " +
+                "WHERE is_deposit != 1 AND value < 1000 " +
+                "GROUP BY " + HOUR_OF_DATE + ";",
+                "UPDATE `user` SET lifetime_spent = COALESCE((" +
+                "  SELECT SUM(value) FROM `transaction` " +
+                "  WHERE user_id = `user`.id AND is_deposit != 1 AND value < 1000" +
+                "), 0);"
+        };
+
+        try (Statement st = getConnection().createStatement()) {
+            con.setAutoCommit(false);
+            try {
+                for (String query : REBUILD_QS) {
+                    st.executeUpdate(query);
+                }
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to rebuild statistics.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Transactions done are logged with this method.
+     *
+     * @param user_id ID of {@link User} for this transaction
+     * @param value Amount of money
+     * @param is_deposit True if money was deposited
+     * @param new_balance The new balance for {@link User}
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void transaction(int user_id, int value, boolean is_deposit, int new_balance) throws SQLException {
+        String TRANSACTION_QS = "INSERT INTO `transaction` (user_id, value, is_deposit, new_balance, date) VALUES (?, ?, ?, ?, ?);";
+        try {
+            PreparedStatement ps = prepare(TRANSACTION_QS);
+            ps.setInt(1, user_id);
+            ps.setInt(2, value);
+            ps.setBoolean(3, is_deposit);
+            ps.setInt(4, new_balance);
+            ps.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to create transaction for %d to User '%d'. Deposit = %s", value, user_id, is_deposit));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Removed entries from the user table that do not have any children in the transaction table.
+     *
+     * @return amount of rows affected
+     * @throws SQLException
+     */
+    @Override
+    public synchronized int pruneInactiveRFIDs() throws SQLException {
+        String PRUNE_QS = "DELETE FROM `user` WHERE id NOT IN (" +
+                          "  SELECT DISTINCT user_id " +
+                          "  FROM `transaction` " +
+                          ");";
+        try {
+            return prepare(PRUNE_QS).executeUpdate();
+        } catch (SQLException ex) {
+            logger.error("Failed to prune inactive user accounts.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Imports users from an older database. Users whose RFID is not in use are created with the given
+     * credit and creation date, and users that already exist have the credit added to their balance.
+     * All users are written in one database transaction.
+     *
+     * This method is only supposed to be used with the importing of older SQL databases.
+     *
+     * @param users Users to import, the ID of each is ignored
+     * @return Map from RFID to the ID of the user in this database
+     * @throws SQLException
+     */
+    @Override
+    public synchronized Map<String, Integer> importUsers(List<User> users) throws SQLException {
+        String GET_USER_ID_QS = "SELECT id FROM `user` WHERE rfid = ?;";
+        String CREATE_USER_QS = "INSERT INTO `user` (credit, rfid, ecc, is_staff, created, last_used) VALUES (?, ?, ?, 0, ?, ?);";
+        String DEPOSIT_QS = "UPDATE `user` SET credit = credit+?, version = version+1 WHERE id = ?;";
+        String LAST_ID_QS = "SELECT last_insert_rowid();";
+
+        Map<String, Integer> ids = new HashMap<>();
+        List<Integer> allocated = new ArrayList<>();
+
+        try {
+            getConnection().setAutoCommit(false);
+            try {
+                for (User user : users) {
+                    PreparedStatement ps = prepare(GET_USER_ID_QS);
+                    ps.setString(1, user.getRfid());
+                    Integer id = null;
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) id = rs.getInt(1);
+                    }
+
+                    if (id != null) {
+                        ps = prepare(DEPOSIT_QS);
+                        ps.setInt(1, user.getCredit());
+                        ps.setInt(2, id);
+                        ps.executeUpdate();
+                    }
+                    else {
+                        int ecc = makeECC();
+                        allocated.add(ecc);
+
+                        ps = prepare(CREATE_USER_QS);
+                        ps.setInt(1, user.getCredit());
+                        ps.setString(2, user.getRfid());
+                        ps.setInt(3, ecc);
+                        ps.setTimestamp(4, user.getCreated());
+                        ps.setTimestamp(5, user.getCreated());
+                        ps.executeUpdate();
+
+                        try (ResultSet rs = prepare(LAST_ID_QS).executeQuery()) {
+                            rs.next();
+                            id = rs.getInt(1);
+                        }
+                    }
+
+                    ids.put(user.getRfid(), id);
+                }
+
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                for (int ecc : allocated) {
+                    eccAllocator.release(ecc);
+                }
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to import users.");
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Imports transactions from an older database with their original dates, in one database
+     * transaction. The rollups and lifetime spending are not updated, run rebuildStatistics when
+     * all transactions are imported.
+     *
+     * This method is only supposed to be used with the importing of older SQL databases.
+     *
+     * @param transactions Transactions to import
+     * @throws SQLException
+     */
+    @Override
+    public synchronized void importTransactions(List<Transaction> transactions) throws SQLException {
+        String TRANSACTION_QS = "INSERT INTO `transaction` (user_id, value, is_deposit, new_balance, date) VALUES (?, ?, ?, ?, ?);";
+
+        try {
+            getConnection().setAutoCommit(false);
+            try {
+                PreparedStatement ps = prepare(TRANSACTION_QS);
+                for (Transaction transaction : transactions) {
+                    ps.setInt(1, transaction.getUserid());
+                    ps.setInt(2, transaction.getValue());
+                    ps.setBoolean(3, transaction.isDeposit());
+                    ps.setInt(4, transaction.getNew_balance());
+                    ps.setTimestamp(5, transaction.getDate());
+                    ps.executeUpdate();
+                }
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.error(String.format("Failed to import %d transactions.", transactions.size()));
+            logger.error(ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates an ECC number meant to be used as simple account recovery.
+     * The ECCs in use are read from the database the first time this is called.
+     *
+     * @return random unused ECC in the range 100000-999999
+     * @throws SQLException
+     */
+    private int makeECC() throws SQLException {
+        if (!eccAllocator.isLoaded()) eccAllocator.load(getConnection());
+
+        int ecc = eccAllocator.allocate();
+        if (ecc == -1) throw new SQLException("There are no unused ECC numbers left.");
+
+        return ecc;
+    }
+
+}
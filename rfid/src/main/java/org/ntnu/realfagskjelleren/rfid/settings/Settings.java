@@ -22,6 +22,18 @@ public class Settings {
     private String dbPort = "* 3306";
     private String consoleWidth = "* 120";
     private String automaticUpdates = "* true";
+    private String dbPoolMinSize = "* 1";
+    private String dbPoolMaxSize = "* 4";
+    private String dbPoolIdleTimeout = "* 300";
+    private String userCacheSize = "* 0";
+    private String leaderboardHours = "* 0";
+    private String dbType = "* mysql";
+    private String sqliteFile = "* rfid.db";
+    private String offlineMode = "* false";
+    private String offlineJournalFile = "* offline.journal";
+    private String metricsLogInterval = "* 60";
+    private String sqlTracing = "* false";
+    private String slowQueryThreshold = "* 0";
 
     public Settings() {
     }
@@ -54,6 +66,84 @@ public class Settings {
         return automaticUpdates.equals("true");
     }
 
+    public int getDbPoolMinSize() throws NumberFormatException {
+        return Integer.parseInt(dbPoolMinSize);
+    }
+
+    public int getDbPoolMaxSize() throws NumberFormatException {
+        return Integer.parseInt(dbPoolMaxSize);
+    }
+
+    /**
+     * @return Seconds an unused pooled connection is kept open before it is closed
+     */
+    public int getDbPoolIdleTimeout() throws NumberFormatException {
+        return Integer.parseInt(dbPoolIdleTimeout);
+    }
+
+    /**
+     * Only for a till that is the only one writing to its database, such as one with its own SQLite
+     * file. The cache does not see changes made by other tills.
+     *
+     * @return Number of users to keep in memory, 0 disables the cache
+     */
+    public int getUserCacheSize() throws NumberFormatException {
+        return Integer.parseInt(userCacheSize);
+    }
+
+    /**
+     * Only for a till that is the only one selling from its database. The leaderboard does not see
+     * purchases made by other tills.
+     *
+     * @return Longest top ten window in hours that is kept in memory, 0 disables the leaderboard
+     */
+    public int getLeaderboardHours() throws NumberFormatException {
+        return Integer.parseInt(leaderboardHours);
+    }
+
+    /**
+     * @return "mysql" for a MySQL server, or "sqlite" for an embedded database in sqliteFile
+     */
+    public String getDbType() {
+        return dbType;
+    }
+
+    public String getSqliteFile() {
+        return sqliteFile;
+    }
+
+    /**
+     * @return true if deposits and purchases should be journaled locally while the database is unreachable
+     */
+    public boolean getOfflineMode() {
+        return offlineMode.equals("true");
+    }
+
+    public String getOfflineJournalFile() {
+        return offlineJournalFile;
+    }
+
+    /**
+     * @return Minutes between each time the database call latencies are logged, 0 disables the logging
+     */
+    public int getMetricsLogInterval() throws NumberFormatException {
+        return Integer.parseInt(metricsLogInterval);
+    }
+
+    /**
+     * @return true if every MySQL statement should be logged with the "sql" marker
+     */
+    public boolean getSqlTracing() {
+        return sqlTracing.equals("true");
+    }
+
+    /**
+     * @return Milliseconds a MySQL statement may take before it is logged with the "slowquery" marker, 0 disables the slow query log
+     */
+    public int getSlowQueryThreshold() throws NumberFormatException {
+        return Integer.parseInt(slowQueryThreshold);
+    }
+
     public boolean cleanOptionalFields() {
         boolean change = false;
 
@@ -69,6 +159,54 @@ public class Settings {
             this.automaticUpdates = this.automaticUpdates.substring(2);
             change = true;
         }
+        if (this.dbPoolMinSize.startsWith("* ")) {
+            this.dbPoolMinSize = this.dbPoolMinSize.substring(2);
+            change = true;
+        }
+        if (this.dbPoolMaxSize.startsWith("* ")) {
+            this.dbPoolMaxSize = this.dbPoolMaxSize.substring(2);
+            change = true;
+        }
+        if (this.dbPoolIdleTimeout.startsWith("* ")) {
+            this.dbPoolIdleTimeout = this.dbPoolIdleTimeout.substring(2);
+            change = true;
+        }
+        if (this.userCacheSize.startsWith("* ")) {
+            this.userCacheSize = this.userCacheSize.substring(2);
+            change = true;
+        }
+        if (this.leaderboardHours.startsWith("* ")) {
+            this.leaderboardHours = this.leaderboardHours.substring(2);
+            change = true;
+        }
+        if (this.dbType.startsWith("* ")) {
+            this.dbType = this.dbType.substring(2);
+            change = true;
+        }
+        if (this.sqliteFile.startsWith("* ")) {
+            this.sqliteFile = this.sqliteFile.substring(2);
+            change = true;
+        }
+        if (this.offlineMode.startsWith("* ")) {
+            this.offlineMode = this.offlineMode.substring(2);
+            change = true;
+        }
+        if (this.offlineJournalFile.startsWith("* ")) {
+            this.offlineJournalFile = this.offlineJournalFile.substring(2);
+            change = true;
+        }
+        if (this.metricsLogInterval.startsWith("* ")) {
+            this.metricsLogInterval = this.metricsLogInterval.substring(2);
+            change = true;
+        }
+        if (this.sqlTracing.startsWith("* ")) {
+            this.sqlTracing = this.sqlTracing.substring(2);
+            change = true;
+        }
+        if (this.slowQueryThreshold.startsWith("* ")) {
+            this.slowQueryThreshold = this.slowQueryThreshold.substring(2);
+            change = true;
+        }
 
         return change;
     }
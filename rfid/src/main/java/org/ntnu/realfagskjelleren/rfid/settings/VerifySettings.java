@@ -27,22 +27,23 @@ public class VerifySettings {
             return null;
         }
 
-        // If these fields aren't filled out the application will not work.
-        if (settings.getDbUsername().startsWith("** ") ||
+        // If optional values still have their default, make sure they are stripped and settings rewritten.
+        if (settings.cleanOptionalFields()) {
+            JSONStorage.save(SETTINGS_FILE, settings);
+            logger.debug("Uncleaned optional value detected. Assuming updated settings file. Saving.");
+        }
+
+        // If these fields aren't filled out the application will not work. An embedded database needs none of them.
+        if (settings.getDbType().equals("mysql") && (
+                settings.getDbUsername().startsWith("** ") ||
                 settings.getDbPassword().startsWith("** ") ||
                 settings.getDbHost().startsWith("** ") ||
                 settings.getDbName().startsWith("** ")
-                ) {
+                )) {
             updateSettings();
             return null;
         }
 
-        // If optional values still have their default, make sure they are stripped and settings rewritten.
-        if (settings.cleanOptionalFields()) {
-            JSONStorage.save(SETTINGS_FILE, settings);
-            logger.debug("Uncleaned optional value detected. Assuming updated settings file. Saving.");
-        }
-
         return settings;
     }
 
@@ -5,6 +5,8 @@ import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.win32.StdCallLibrary;
 
+import java.nio.CharBuffer;
+
 /**
  * This class handles output for the ConsoleUI.
  * Special handling for this is needed as UTF-8 output in Windows is unreliable
@@ -15,11 +17,14 @@ import com.sun.jna.win32.StdCallLibrary;
 public class Console {
 
     private Kernel32 INSTANCE = null;
+    // Standard output of the Windows console, looked up once.
+    private Pointer handle = null;
 
     public Console() {
         String os = System.getProperty("os.name").toLowerCase();
         if (os.startsWith("win")) {
             INSTANCE = (Kernel32) Native.loadLibrary("kernel32", Kernel32.class);
+            handle = INSTANCE.GetStdHandle(-11);
         }
     }
 
@@ -31,13 +36,13 @@ public class Console {
     }
 
     public void print(String message) {
-        if (!attemptWindowsprint(message)) {
+        if (!attemptWindowsprint(message.toCharArray(), message.length())) {
             System.out.print(message);
         }
     }
 
     public void println(String message) {
-        if (attemptWindowsprint(message)) {
+        if (attemptWindowsprint(message.toCharArray(), message.length())) {
             System.out.println();
         }
         else {
@@ -45,20 +50,33 @@ public class Console {
         }
     }
 
+    /**
+     * Writes the start of a buffer to the console with a single write, so a whole screen of text
+     * shows up at once. Line breaks have to be in the buffer.
+     *
+     * @param buffer Characters to write
+     * @param length Number of characters from the start of the buffer to write
+     */
+    public void write(char[] buffer, int length) {
+        if (!attemptWindowsprint(buffer, length)) {
+            System.out.append(CharBuffer.wrap(buffer, 0, length));
+            System.out.flush();
+        }
+    }
+
     /**
      * Attempts to print text to the Windows console.
      *
-     * @param message Message to print
+     * @param buffer Characters to print
+     * @param length Number of characters from the start of the buffer to print
      * @return True if text was printed to a windows console
      */
-    private boolean attemptWindowsprint(String message) {
+    private boolean attemptWindowsprint(char[] buffer, int length) {
         boolean successful = false;
 
         if (INSTANCE != null) {
-            Pointer handle = INSTANCE.GetStdHandle(-11);
-            char[] buffer = message.toCharArray();
             IntByReference lpNumberOfCharsWritten = new IntByReference();
-            successful = INSTANCE.WriteConsoleW(handle, buffer, buffer.length, lpNumberOfCharsWritten, null);
+            successful = INSTANCE.WriteConsoleW(handle, buffer, length, lpNumberOfCharsWritten, null);
         }
 
         return successful;
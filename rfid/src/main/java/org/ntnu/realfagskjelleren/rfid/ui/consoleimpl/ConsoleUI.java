@@ -1,34 +1,119 @@
 package org.ntnu.realfagskjelleren.rfid.ui.consoleimpl;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
 import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
 import org.ntnu.realfagskjelleren.rfid.db.model.User;
 import org.ntnu.realfagskjelleren.rfid.ui.model.UI;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Implementation of UI via the console or terminal. The implementation is made to work with only a numpad.
  *
+ * Reading and writing the console happen on threads of their own, so the thread using the UI, which
+ * does the database work, never waits on the console and the console never waits on the database.
+ * A reader thread takes every line as soon as it is typed or scanned, notes when it arrived and
+ * queues it. Lines are handed out in the order they arrived, however long the POS took with the
+ * previous one. Output is queued in order to a render thread that writes it to the console.
+ *
+ * Output is drawn a frame at a time. Everything one call to the UI prints, for instance a whole page
+ * of a table, is composed into one frame, and the render thread writes each frame to the console in
+ * a single write, so slow terminals don't show a screen being built line by line.
+ *
  * @author Håvard Slettvold
  */
 public class ConsoleUI implements UI {
 
-    private Scanner scanner = new Scanner(System.in);
-    private Console console = new Console();     
+    private static Logger logger = LogManager.getLogger(ConsoleUI.class.getName());
+
+    // Rows per table when showing users or transactions
+    private static final int PAGE_SIZE = 25;
+    // Lines read ahead of the POS, and writes waiting for the console. When either is full the
+    // producer waits, so nothing is dropped.
+    private static final int INPUT_QUEUE_SIZE = 256;
+    private static final int RENDER_QUEUE_SIZE = 1024;
+    // Lines that waited at least this long before the POS took them are logged.
+    private static final long SLOW_INPUT_MILLIS = 100;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final InputLine END_OF_INPUT = new InputLine(null, 0);
+
+    private final BlockingQueue<InputLine> input = new ArrayBlockingQueue<>(INPUT_QUEUE_SIZE);
+    // Lines passed over by a confirmation because they were typed before its question, in the order
+    // they were typed. They are taken before anything in the input queue. Only used by the thread
+    // using the UI.
+    private final Deque<InputLine> typedAhead = new ArrayDeque<>();
+    private final ThreadPoolExecutor render;
+    private Thread reader;
+    private Console console = new Console();
                                                          // 0    1    2    3    4    5    6    7    8    9    10   11   12   13   14
     private final char[] boxDrawingCharacters = new char[]{'═', '║', '╔', '╗', '╚', '╝', '╠', '╣', '╦', '╩', '╬', '─', '╟', '╢', '╫'};
     private final int consoleWidth;
+    // Rows of the frame around transactions, which only depend on the width.
+    private final String frameTopRow;
+    private final String frameBottomRow;
+    private final String frameMiddleRow;
+    private final String frameEmptyRow;
     private boolean active_transaction = false;
 
+    // Text printed since the last frame was drawn, and how many frames are open. Only used by the
+    // thread using the UI.
+    private List<String> frame = new ArrayList<>();
+    private int frameDepth = 0;
+    // Only used by the render thread.
+    private final FrameBuffer frameBuffer;
+
     public ConsoleUI(int consoleWidth) {
         this.consoleWidth = consoleWidth;
+        this.frameTopRow = boxDrawingCharacters[2] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[3];
+        this.frameBottomRow = boxDrawingCharacters[4] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[5];
+        this.frameMiddleRow = boxDrawingCharacters[6] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[7];
+        this.frameEmptyRow = boxDrawingCharacters[1] + StringUtils.repeat(" ", consoleWidth-2) + boxDrawingCharacters[1];
+        // Room for a page of a table with its title and prompt, it grows if a frame needs more.
+        this.frameBuffer = new FrameBuffer((PAGE_SIZE + 20) * (consoleWidth + 2));
+        this.render = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(RENDER_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "console-render");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // After close there is no render thread, so the output is written directly.
+                        if (executor.isShutdown()) {
+                            r.run();
+                            return;
+                        }
+
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+        );
     }
 
     @Override
     public void showWelcomeMessage(String version) {
+        beginFrame();
         frameTop();
         if (consoleWidth < 60) {
             printCenterAligned(Arrays.asList(
@@ -59,6 +144,7 @@ public class ConsoleUI implements UI {
         printCenterAligned("RFID version "+ version +" by realfagskjelleren");
         frameEmpty();
         frameBottom();
+        endFrame();
     }
 
     @Override
@@ -68,6 +154,7 @@ public class ConsoleUI implements UI {
 
     @Override
     public void showHelp() {
+        beginFrame();
         display(Arrays.asList(
                 "Flags:",
                 " M = available from main input",
@@ -82,6 +169,8 @@ public class ConsoleUI implements UI {
                 " xxx    | - U | Remove xxx from the currently scanned RFID",
                 " ---    | - U | Shows the total amount of money spent from currently scanned RFID",
                 " /X     | M U | Show X latest transactions (if X is empty show 10)",
+                " /-     | M U | Show the transactions before the ones shown last",
+                " /+     | M U | Show the transactions after the ones shown last",
                 "===",
                 "|| Statistics",
                 "---",
@@ -93,12 +182,15 @@ public class ConsoleUI implements UI {
                 "---",
                 " ***    | M U | Quit",
                 " ///    | M - | Show all users",
+                " -+-    | M - | Show the latency of database calls",
                 " -+-+   | M - | Prune Inactive RFIDs (with no transactions)",
+                " +-+-   | M - | Rebuild statistics from the transaction log",
                 " ++++   | - U | Change the RFID for a user",
                 " /-*/-* | - U | Merge currently scanned RFID with next scanned RFID",
                 " -      | - U | Show check sum for the currently scanned RFID",
                 " +      | M U | Show the system version"
         )));
+        endFrame();
     }
 
     @Override
@@ -118,49 +210,67 @@ public class ConsoleUI implements UI {
 
     @Override
     public String takeInput(String question) {
-        try {
-            display(question);
-            if (active_transaction) {
-                console.print("U:> ");
-            }
-            else {
-                console.print("M:> ");
-            }
-            String input = scanner.nextLine();
-
-            // If exit signal is found, return exit.
-            if (input.equals("/-*/-*")) return "/merge";
-            if (input.equals("-+-+")) return "/prune";
-            if (input.equals("***")) return "exit";
-            if (input.equals("/*-")) return "/help";
-            if (input.equals("+++")) return "/updateRfid";
-            if (input.equals("---")) return "/totalSpent";
-            if (input.equals("///")) return "/users";
-            if (input.startsWith("--")) return "/topDays " + input.substring(2);
-            if (input.startsWith("++")) return "/stats " + input.substring(2);
-            if (input.startsWith("/")) return "/transactions " + input.substring(1);
-            if (input.startsWith("*")) return "/topTen " + input.substring(1);
-            if (input.equals("-")) return "/checksum";
-            if (input.equals("+")) return "/version";
-
-            return input;
-        } catch (NoSuchElementException e) {
-            // Occurs when the program is interrupted. Essentially means quit. Returning null will exit.
-            return null;
+        beginFrame();
+        display(question);
+        if (active_transaction) {
+            print("U:> ");
+        }
+        else {
+            print("M:> ");
         }
+        endFrame();
+
+        InputLine line = nextLine();
+        // Occurs when the input ends or the program is interrupted. Essentially means quit. Returning null will exit.
+        if (line == null) return null;
+        String input = line.text;
+
+        // If exit signal is found, return exit.
+        if (input.equals("/-*/-*")) return "/merge";
+        if (input.equals("-+-+")) return "/prune";
+        if (input.equals("-+-")) return "/metrics";
+        if (input.equals("+-+-")) return "/rebuildStats";
+        if (input.equals("***")) return "exit";
+        if (input.equals("/*-")) return "/help";
+        if (input.equals("+++")) return "/updateRfid";
+        if (input.equals("---")) return "/totalSpent";
+        if (input.equals("///")) return "/users";
+        if (input.startsWith("--")) return "/topDays " + input.substring(2);
+        if (input.startsWith("++")) return "/stats " + input.substring(2);
+        if (input.equals("/-")) return "/older";
+        if (input.equals("/+")) return "/newer";
+        if (input.startsWith("/")) return "/transactions " + input.substring(1);
+        if (input.startsWith("*")) return "/topTen " + input.substring(1);
+        if (input.equals("-")) return "/checksum";
+        if (input.equals("+")) return "/version";
+
+        return input;
     }
 
     @Override
     public boolean takeConfirmation(String output) {
+        beginFrame();
         display(Arrays.asList(
                 output,
                 "Use 5 for yes and anything else for no."
         ));
-        console.print("> ");
-
-        String input = scanner.nextLine();
+        long shown = printAndWait("> ");
+        endFrame();
+
+        while (true) {
+            InputLine line = nextQueuedLine();
+            if (line == null) return false;
+
+            // Anything typed before the question was on screen was meant for something else, such as a
+            // card scanned ahead. It is kept for takeInput and the answer is waited for.
+            if (line.received < shown) {
+                logger.debug(MarkerManager.getMarker("input"), "Not taking '" + line.text + "', typed before the question was shown, as confirmation.");
+                typedAhead.add(line);
+                continue;
+            }
 
-        return input.equals("5");
+            return line.text.equals("5");
+        }
     }
 
     @Override
@@ -170,6 +280,7 @@ public class ConsoleUI implements UI {
 
     @Override
     public void display(List<String> output) {
+        beginFrame();
         if (active_transaction) {
             frameEmpty();
             printLeftAligned(output);
@@ -178,7 +289,7 @@ public class ConsoleUI implements UI {
             println("");
             println(output);
         }
-
+        endFrame();
     }
 
     @Override
@@ -189,6 +300,7 @@ public class ConsoleUI implements UI {
     @Override
     public void startTransaction(User user) {
         active_transaction = true;
+        beginFrame();
         frameTop();
 
         List<String> response = Arrays.asList(
@@ -200,6 +312,7 @@ public class ConsoleUI implements UI {
         );
 
         display(table(response));
+        endFrame();
     }
 
     @Override
@@ -209,8 +322,10 @@ public class ConsoleUI implements UI {
 
     @Override
     public void endTransaction(List<String> output) {
+        beginFrame();
         display(output);
         frameBottom();
+        endFrame();
         active_transaction = false;
     }
 
@@ -231,69 +346,130 @@ public class ConsoleUI implements UI {
     }
 
     /**
-     * Show a table of transactions.
+     * Show a table of transactions, one page at a time.
      *
-     * @param transactions List of transactions to display
+     * @return Visitor to hand the transactions to, in the order they should be shown
      */
     @Override
-    public void showTransactions(List<Transaction> transactions) {
-        List<String> tableData = new ArrayList<>();
-
-        String rowFormat = "%s|%s|%s|%s";
-        String tableHeader = "RFID | Amount | New balance | Date";
-
-        // Generate table
-        tableData.add(tableHeader);
-        tableData.add("===");
-        for (int i=transactions.size() - 1; i >= 0; i--) {
-            Transaction t = transactions.get(i);
-            String sign = t.isDeposit() ? "+" : "-";
-            tableData.add(String.format(
-                    rowFormat,
-                    t.getRfid(),
-                    sign + t.getValue(),
-                    t.getNew_balance(),
-                    t.getDate()
-            ));
-            if (i != 0 && i % 5 == 0) {
-                tableData.add("---");
+    public RowVisitor<Transaction> showTransactions() {
+        return new Pager<Transaction>("Showing transactions.", "No transactions!", "RFID | Amount | New balance | Date") {
+            @Override
+            protected String row(Transaction t) {
+                String sign = t.isDeposit() ? "+" : "-";
+                return String.format(
+                        "%s|%s|%s|%s",
+                        t.getRfid(),
+                        sign + t.getValue(),
+                        t.getNew_balance(),
+                        t.getDate()
+                );
             }
-        }
-
-        display(table(tableData));
+        };
     }
 
     /**
-     * Show a table of users.
+     * Show a table of users, one page at a time.
      *
-     * @param users List of users to display
+     * @return Visitor to hand the users to, in the order they should be shown
      */
     @Override
-    public void showUsers(List<User> users) {
-        List<String> tableData = new ArrayList<>();
-
-        String rowFormat = "%d|%s|%d|%s|%s";
-        String tableHeader = "ID | RFID | Balance | Created | Last used";
-
-        // Generate table
-        tableData.add(tableHeader);
-        tableData.add("===");
-        for (int i=0; i < users.size(); i++) {
-            if (i != 0 && i % 5 == 0) {
-                tableData.add("---");
+    public RowVisitor<User> showUsers() {
+        return new Pager<User>("Showing all users.", "No users!", "ID | RFID | Balance | Created | Last used") {
+            @Override
+            protected String row(User u) {
+                return String.format(
+                        "%d|%s|%d|%s|%s",
+                        u.getId(),
+                        u.getRfid(),
+                        u.getCredit(),
+                        u.getCreated(),
+                        u.getLastUsed()
+                );
             }
-            User u = users.get(i);
-            tableData.add(String.format(
-                    rowFormat,
-                    u.getId(),
-                    u.getRfid(),
-                    u.getCredit(),
-                    u.getCreated(),
-                    u.getLastUsed()
-            ));
+        };
+    }
+
+    /**
+     * Writes out everything still waiting for the console. Anything displayed afterwards is written
+     * directly.
+     */
+    @Override
+    public void close() {
+        drawFrame();
+        render.shutdown();
+        try {
+            render.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        display(table(tableData));
+    /**
+     * Shows rows as tables of {@link #PAGE_SIZE} rows. Only the current page is kept, and the
+     * user is asked whether to go on before the next page is shown. Each page is drawn as one frame.
+     */
+    private abstract class Pager<T> implements RowVisitor<T> {
+
+        private final String title;
+        private final String empty;
+        private final String header;
+        private final List<T> page = new ArrayList<>(PAGE_SIZE);
+        private int shown = 0;
+
+        private Pager(String title, String empty, String header) {
+            this.title = title;
+            this.empty = empty;
+            this.header = header;
+        }
+
+        protected abstract String row(T t);
+
+        @Override
+        public boolean visit(T t) {
+            if (page.size() == PAGE_SIZE) {
+                // The page and the question about the next one are drawn together.
+                beginFrame();
+                showPage();
+                boolean more = takeConfirmation(String.format("Shown %d rows so far. Show more?", shown));
+                endFrame();
+                if (!more) return false;
+            }
+
+            page.add(t);
+            return true;
+        }
+
+        @Override
+        public void done() {
+            if (shown == 0 && page.isEmpty()) {
+                display(empty);
+            }
+            else {
+                showPage();
+            }
+        }
+
+        private void showPage() {
+            List<String> tableData = new ArrayList<>();
+
+            // Generate table
+            tableData.add(header);
+            tableData.add("===");
+            for (int i=0; i < page.size(); i++) {
+                if (i != 0 && i % 5 == 0) {
+                    tableData.add("---");
+                }
+                tableData.add(row(page.get(i)));
+            }
+
+            beginFrame();
+            if (shown == 0) display(title);
+            display(table(tableData));
+            endFrame();
+
+            shown += page.size();
+            page.clear();
+        }
     }
 
     /*
@@ -303,12 +479,186 @@ public class ConsoleUI implements UI {
     /**
      * Regular print method. No borders.
      * This method is used in order to simplify changing the ui at a later
-     * point, rather than statically using console.println.
+     * point, rather than statically using console.println. The line is added to the current frame.
      *
      * @param line Line to be printed
      */
     private void println(String line) {
-        console.println(line);
+        frame.add(line);
+        frame.add(LINE_SEPARATOR);
+        if (frameDepth == 0) drawFrame();
+    }
+
+    /**
+     * Prints without a line break, for prompts.
+     *
+     * @param text Text to be printed
+     */
+    private void print(String text) {
+        frame.add(text);
+        if (frameDepth == 0) drawFrame();
+    }
+
+    /**
+     * Starts a frame. Everything printed until the matching {@link #endFrame()} is drawn to the
+     * console at once. Frames may be nested, only the outermost one is drawn.
+     */
+    private void beginFrame() {
+        frameDepth++;
+    }
+
+    private void endFrame() {
+        if (frameDepth > 0) frameDepth--;
+        if (frameDepth == 0) drawFrame();
+    }
+
+    /**
+     * Hands what has been printed so far to the render thread, to be written as one frame.
+     */
+    private void drawFrame() {
+        if (frame.isEmpty()) return;
+
+        final List<String> parts = takeFrame();
+        render.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFrame(parts);
+            }
+        });
+    }
+
+    private List<String> takeFrame() {
+        List<String> parts = frame;
+        frame = new ArrayList<>();
+        return parts;
+    }
+
+    /**
+     * Composes a frame in the frame buffer and writes it with one write. Runs on the render thread.
+     *
+     * @param parts Text of the frame, in order
+     */
+    private void writeFrame(List<String> parts) {
+        for (String part : parts) {
+            frameBuffer.append(part);
+        }
+        frameBuffer.writeTo(console);
+    }
+
+    /**
+     * Prints without a line break, as the last part of the frame, and waits for the frame to reach
+     * the console.
+     *
+     * @param text Text to be printed
+     * @return System.nanoTime() when the text had been printed
+     */
+    private long printAndWait(String text) {
+        frame.add(text);
+        final List<String> parts = takeFrame();
+        FutureTask<Long> printed = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                writeFrame(parts);
+                return System.nanoTime();
+            }
+        });
+        render.execute(printed);
+
+        try {
+            return printed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Failed to print to the console: " + e.getCause().getMessage());
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Takes the next line typed, starting with any passed over by a confirmation.
+     *
+     * @return The next line, or null if the input has ended
+     */
+    private InputLine nextLine() {
+        InputLine line = typedAhead.poll();
+        if (line == null) return nextQueuedLine();
+
+        frameDepth = 0;
+        drawFrame();
+        return line;
+    }
+
+    /**
+     * Takes the next line from the input queue, waiting for one if none has been typed yet. The reader
+     * thread is started by the first call, so a UI that is never asked for input never reads System.in.
+     *
+     * @return The next line, or null if the input has ended
+     */
+    private InputLine nextQueuedLine() {
+        // Whatever was asked has to be on screen before waiting for the answer, so waiting ends any
+        // open frame. This also closes a frame left open by an exception.
+        frameDepth = 0;
+        drawFrame();
+        startReader();
+
+        try {
+            InputLine line = input.take();
+            if (line == END_OF_INPUT) {
+                // Left in place for any later call.
+                input.offer(END_OF_INPUT);
+                return null;
+            }
+
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - line.received);
+            if (waited >= SLOW_INPUT_MILLIS) {
+                logger.debug(MarkerManager.getMarker("input"), String.format("'%s' waited %d ms to be taken.", line.text, waited));
+            }
+
+            return line;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private synchronized void startReader() {
+        if (reader != null) return;
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLines();
+            }
+        }, "console-input");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Queues every line from System.in with the time it was read, until the input ends. Runs on the
+     * reader thread.
+     */
+    private void readLines() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                input.put(new InputLine(line, System.nanoTime()));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read from the console: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            input.put(END_OF_INPUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -317,9 +667,11 @@ public class ConsoleUI implements UI {
      * @param lines Lines to be printed.
      */
     private void println(List<String> lines) {
+        beginFrame();
         for (String line : lines) {
             println(line);
         }
+        endFrame();
     }
 
     /* Some methods to sort out the printing of transaction specific separation */
@@ -330,28 +682,28 @@ public class ConsoleUI implements UI {
      * Inserts a line into the transactionthat is the top of a square frame.
      */
     private void frameTop() {
-        console.println(boxDrawingCharacters[2] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[3]);
+        println(frameTopRow);
     }
 
     /**
      * Inserts a line into the transactionthat is the bottom of a square frame.
      */
     private void frameBottom() {
-        console.println(boxDrawingCharacters[4] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[5]);
+        println(frameBottomRow);
     }
 
     /**
      * Inserts a line into the transactionwith vertical borders and a horizontal double line.
      */
     private void frameMiddle() {
-        console.println(boxDrawingCharacters[6] + StringUtils.repeat(boxDrawingCharacters[0], consoleWidth-2) + boxDrawingCharacters[7]);
+        println(frameMiddleRow);
     }
 
     /**
      * Inserts a line into the transactionwith only vertical borders on either side and no content.
      */
     private void frameEmpty() {
-        console.println(boxDrawingCharacters[1] + StringUtils.repeat(" ", consoleWidth-2) + boxDrawingCharacters[1]);
+        println(frameEmptyRow);
     }
 
     /* General printing methods */
@@ -376,7 +728,7 @@ public class ConsoleUI implements UI {
         List<String> wrappedLines = wrap(lines);
 
         for (String line : wrappedLines) {
-            console.println(leftAlign(line));
+            println(leftAlign(line));
         }
     }
 
@@ -400,7 +752,7 @@ public class ConsoleUI implements UI {
         List<String> wrappedLines = wrap(lines);
 
         for (String line : wrappedLines) {
-            console.println(rightAlign(line));
+            println(rightAlign(line));
         }
     }
 
@@ -424,7 +776,7 @@ public class ConsoleUI implements UI {
         List<String> wrappedLines = wrap(lines);
 
         for (String line : wrappedLines) {
-            console.println(center(line));
+            println(center(line));
         }
     }
 
@@ -583,4 +935,18 @@ public class ConsoleUI implements UI {
     protected char[] getBoxDrawingCharacters() {
         return this.boxDrawingCharacters;
     }
+
+    /**
+     * A line of input and the System.nanoTime() it was read at.
+     */
+    private static class InputLine {
+
+        private final String text;
+        private final long received;
+
+        private InputLine(String text, long received) {
+            this.text = text;
+            this.received = received;
+        }
+    }
 }
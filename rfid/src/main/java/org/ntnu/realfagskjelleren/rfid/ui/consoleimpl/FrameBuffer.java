@@ -0,0 +1,65 @@
+package org.ntnu.realfagskjelleren.rfid.ui.consoleimpl;
+
+import java.util.Arrays;
+
+/**
+ * One screen update for the console, composed in a single char buffer so it reaches the console in
+ * one write instead of one write per line. The buffer is kept between frames and only grows, so
+ * once the largest frame has been drawn, drawing does not allocate.
+ *
+ * Not thread safe. {@link ConsoleUI} only uses it from its render thread.
+ *
+ * @author Håvard Slettvold
+ */
+class FrameBuffer {
+
+    private char[] buffer;
+    private int length = 0;
+
+    /**
+     * @param capacity Characters the buffer starts out with room for
+     */
+    FrameBuffer(int capacity) {
+        this.buffer = new char[Math.max(capacity, 16)];
+    }
+
+    /**
+     * @param text Text to add to the end of the frame
+     */
+    void append(String text) {
+        int needed = length + text.length();
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+
+        text.getChars(0, text.length(), buffer, length);
+        length = needed;
+    }
+
+    /**
+     * @return Number of characters in the frame
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Writes the frame to the console and empties the buffer for the next frame.
+     *
+     * @param console Console to write to
+     */
+    void writeTo(Console console) {
+        if (length == 0) return;
+
+        try {
+            console.write(buffer, length);
+        } finally {
+            length = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
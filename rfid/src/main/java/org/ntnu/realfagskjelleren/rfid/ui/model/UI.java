@@ -1,5 +1,6 @@
 package org.ntnu.realfagskjelleren.rfid.ui.model;
 
+import org.ntnu.realfagskjelleren.rfid.db.model.RowVisitor;
 import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
 import org.ntnu.realfagskjelleren.rfid.db.model.User;
 
@@ -33,7 +34,12 @@ public interface UI {
     public void endTransaction(String output);
     public void endTransaction(List<String> output);
 
-    public void showTransactions(List<Transaction> transactions);
-    public void showUsers(List<User> users);
+    // Rows handed to these visitors are shown a page at a time. Visiting a row may wait for the user to
+    // ask for the next page, so the rows should not come from a query that is still open.
+    public RowVisitor<Transaction> showTransactions();
+    public RowVisitor<User> showUsers();
+
+    // Called once when the application exits, to finish any output still in progress.
+    public void close();
 
 }
@@ -0,0 +1,87 @@
+package org.ntnu.realfagskjelleren.rfid.cards;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class CardDecoderTest {
+
+    private final CardDecoder decoder = CardDecoder.standard();
+
+    @Test
+    public void classifiesRfidsAndEccs() {
+        assertEquals(CardType.RFID, decoder.classify("0001234567"));
+        assertEquals(CardType.RFID, decoder.classify("abcDEF12"));
+        assertEquals(CardType.ECC, decoder.classify("123456"));
+
+        assertNull(decoder.classify("abcDEF1"));
+        assertNull(decoder.classify("12345"));
+        assertNull(decoder.classify("12345a"));
+        assertNull(decoder.classify("+150"));
+        assertNull(decoder.classify("0001234567 "));
+        assertNull(decoder.classify("æøåæøåæø"));
+        assertNull(decoder.classify(""));
+    }
+
+    @Test
+    public void registeredFormatsAreCheckedInOrder() {
+        decoder.register(new CardFormat() {
+            @Override
+            public CardType getType() {
+                return CardType.ECC;
+            }
+
+            @Override
+            public boolean matches(CharSequence input) {
+                return input.length() == 7 && input.charAt(0) == 'E';
+            }
+        });
+
+        assertEquals(CardType.ECC, decoder.classify("E123456"));
+        assertEquals(CardType.RFID, decoder.classify("E1234567"));
+    }
+
+    @Test
+    public void checksumMatchesTheBinaryStringVersion() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String rfid = String.format("%010d", random.nextInt(Integer.MAX_VALUE));
+            assertEquals(rfid, binaryStringChecksum(rfid), NtnuChecksum.of(rfid));
+        }
+
+        for (String rfid : new String[]{"0", "255", "2147483647", "2147483648", "-1", "-2147483648", "+1", "-", "", "12ab"}) {
+            assertEquals(rfid, binaryStringChecksum(rfid), NtnuChecksum.of(rfid));
+        }
+    }
+
+    // How the check sum used to be calculated, kept to compare against.
+    private static int binaryStringChecksum(String rfid) {
+        int int_rfid;
+
+        try {
+            int_rfid = Integer.parseInt(rfid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        String binary_rfid = StringUtils.leftPad(Integer.toBinaryString(int_rfid), 32, "0");
+
+        String checkSum = "";
+        checkSum += StringUtils.reverse(binary_rfid.substring(0,8));
+        checkSum += StringUtils.reverse(binary_rfid.substring(8,16));
+        checkSum += StringUtils.reverse(binary_rfid.substring(16, 24));
+        checkSum += StringUtils.reverse(binary_rfid.substring(24));
+
+        try {
+            return Integer.parseInt(checkSum, 2);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
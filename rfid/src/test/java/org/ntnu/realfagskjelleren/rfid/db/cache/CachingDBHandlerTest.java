@@ -0,0 +1,138 @@
+package org.ntnu.realfagskjelleren.rfid.db.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class CachingDBHandlerTest {
+
+    private File file;
+    private SQLiteDBHandler sqlite;
+    private Counting database;
+    private CachingDBHandler db;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rfid", ".db");
+        file.delete();
+
+        sqlite = new SQLiteDBHandler(file.getPath());
+        assertTrue(sqlite.createDatabase());
+        database = new Counting(sqlite);
+        db = new CachingDBHandler(database, 2);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void seenUsersAreFoundWithoutTheDatabase() throws Exception {
+        User created = db.getOrCreate("0001234567");
+        assertEquals(1, database.lookups);
+
+        User found = db.getOrCreate("0001234567");
+        assertEquals(1, database.lookups);
+        assertEquals(created.getId(), found.getId());
+        assertTrue(db.rfidExists("0001234567"));
+    }
+
+    @Test
+    public void unseenUsersAreLookedUp() throws Exception {
+        db.getOrCreate("0001234567");
+        db.getOrCreate("0007654321");
+
+        assertEquals(2, database.lookups);
+    }
+
+    @Test
+    public void leastRecentlyUsedUserIsDropped() throws Exception {
+        db.getOrCreate("0000000001");
+        db.getOrCreate("0000000002");
+        // Makes the second user the least recently used.
+        db.getOrCreate("0000000001");
+        db.getOrCreate("0000000003");
+        assertEquals(3, database.lookups);
+
+        db.getOrCreate("0000000001");
+        db.getOrCreate("0000000003");
+        assertEquals(3, database.lookups);
+
+        db.getOrCreate("0000000002");
+        assertEquals(4, database.lookups);
+    }
+
+    @Test
+    public void movedCardIsLookedUpByItsNewRfid() throws Exception {
+        User user = db.getOrCreate("0001234567");
+        db.makeDeposit(user, 50);
+
+        db.updateUserRfid(user.getId(), "0007654321");
+
+        assertFalse(db.rfidExists("0001234567"));
+        User moved = db.getOrCreate("0007654321");
+        assertEquals(user.getId(), moved.getId());
+        assertEquals(50, moved.getCredit());
+        // The copy handed out before the move is left as it was.
+        assertEquals("0001234567", user.getRfid());
+    }
+
+    @Test
+    public void failedRfidUpdateLeavesCachedUserAlone() throws Exception {
+        User user = db.getOrCreate("0001234567");
+        database.failRfidUpdates = true;
+
+        try {
+            db.updateUserRfid(user.getId(), "0007654321");
+            fail("RFID update went through.");
+        } catch (SQLException expected) {
+        }
+
+        assertEquals("0001234567", user.getRfid());
+        assertEquals(user.getId(), db.getOrCreate("0001234567").getId());
+        assertEquals(2, database.lookups);
+    }
+
+    /**
+     * Counts the users looked up in the database.
+     */
+    private static class Counting extends DelegatingDBHandler {
+
+        private int lookups = 0;
+        private boolean failRfidUpdates = false;
+
+        private Counting(DBHandler delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public User getOrCreate(String rfid) throws SQLException {
+            lookups++;
+            return delegate.getOrCreate(rfid);
+        }
+
+        @Override
+        public void updateUserRfid(int user_id, String rfid) throws SQLException {
+            if (failRfidUpdates) throw new SQLException("Lost connection.", "08S01");
+            delegate.updateUserRfid(user_id, rfid);
+        }
+    }
+}
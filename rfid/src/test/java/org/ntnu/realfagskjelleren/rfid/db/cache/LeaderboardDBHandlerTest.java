@@ -0,0 +1,115 @@
+package org.ntnu.realfagskjelleren.rfid.db.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class LeaderboardDBHandlerTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private File file;
+    private SQLiteDBHandler sqlite;
+    private Counting database;
+    private LeaderboardDBHandler db;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("rfid", ".db");
+        file.delete();
+
+        sqlite = new SQLiteDBHandler(file.getPath());
+        assertTrue(sqlite.createDatabase());
+        database = new Counting(sqlite);
+        db = new LeaderboardDBHandler(database, 3);
+
+        // Keeps the test inside one clock hour.
+        long leftOfHour = HOUR - System.currentTimeMillis() % HOUR;
+        if (leftOfHour < 5000) Thread.sleep(leftOfHour + 100);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void windowCoversAsManyClockHoursAsAskedFor() throws Exception {
+        long hourStart = System.currentTimeMillis() / HOUR * HOUR;
+        User now = purchase("0000000001", 10, hourStart + 1);
+        User hourAgo = purchase("0000000002", 20, hourStart - HOUR / 2);
+        User twoHoursAgo = purchase("0000000003", 30, hourStart - HOUR - HOUR / 2);
+        db.seed();
+
+        assertEquals(Arrays.asList(now.getRfid() + "|10"), db.getTopTenFromLastHours(1));
+        assertEquals(Arrays.asList(hourAgo.getRfid() + "|20", now.getRfid() + "|10"), db.getTopTenFromLastHours(2));
+        assertEquals(Arrays.asList(twoHoursAgo.getRfid() + "|30", hourAgo.getRfid() + "|20", now.getRfid() + "|10"), db.getTopTenFromLastHours(3));
+        assertEquals(0, database.topTens);
+    }
+
+    @Test
+    public void purchasesAfterSeedingAreCounted() throws Exception {
+        db.seed();
+        User user = db.getOrCreate("0001234567");
+        db.makeDeposit(user, 100);
+        db.makePurchase(user, 40);
+        db.makePurchase(user, 15);
+
+        assertEquals(Arrays.asList("0001234567|55"), db.getTopTenFromLastHours(1));
+        assertEquals(0, database.topTens);
+    }
+
+    @Test
+    public void otherWindowsAreLeftToTheDatabase() throws Exception {
+        db.getTopTenFromLastHours(1);
+        assertEquals(1, database.topTens);
+
+        db.seed();
+        db.getTopTenFromLastHours(4);
+        assertEquals(2, database.topTens);
+    }
+
+    private User purchase(String rfid, int value, long time) throws SQLException {
+        User user = sqlite.getOrCreate(rfid);
+        sqlite.importTransactions(Arrays.asList(new Transaction(0, user.getId(), rfid, value, 0, false, new Timestamp(time))));
+        return user;
+    }
+
+    /**
+     * Counts the top tens asked of the database.
+     */
+    private static class Counting extends DelegatingDBHandler {
+
+        private int topTens = 0;
+
+        private Counting(DBHandler delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public List<String> getTopTenFromLastHours(int hours) throws SQLException {
+            topTens++;
+            return delegate.getTopTenFromLastHours(hours);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.ntnu.realfagskjelleren.rfid.db.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || micros > LatencyHistogram.upperBound(bucket - 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L, i % 100 == 0);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(10, histogram.getErrors());
+        assertEquals(1000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.25);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(0, new LatencyHistogram().getPercentile(99));
+    }
+}
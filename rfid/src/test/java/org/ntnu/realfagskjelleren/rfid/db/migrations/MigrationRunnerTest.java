@@ -0,0 +1,151 @@
+package org.ntnu.realfagskjelleren.rfid.db.migrations;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class MigrationRunnerTest {
+
+    private File file;
+    private Recording db;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rfid", ".db");
+        file.delete();
+
+        SQLiteDBHandler sqlite = new SQLiteDBHandler(file.getPath());
+        assertTrue(sqlite.createDatabase());
+        db = new Recording(sqlite);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void migrationsAreListedOldestFirst() {
+        List<Migration> migrations = MigrationRunner.migrations();
+
+        for (int i = 1; i < migrations.size(); i++) {
+            assertTrue(migrations.get(i) + " is listed after " + migrations.get(i - 1),
+                    Migration.compareVersions(migrations.get(i - 1).getVersion(), migrations.get(i).getVersion()) < 0);
+        }
+    }
+
+    @Test
+    public void appliedMigrationsAreSkipped() {
+        assertTrue(MigrationRunner.run(db, withNewer("2.8")));
+
+        assertEquals(Arrays.asList("2.8"), db.applied);
+    }
+
+    @Test
+    public void versionsOlderThanTheCurrentOneAreSkipped() {
+        // Set by hand, as releases were before migrations had checksums.
+        assertTrue(db.setVersion("3.0"));
+
+        assertTrue(MigrationRunner.run(db, withNewer("2.8", "3.1")));
+
+        assertEquals(Arrays.asList("3.1"), db.applied);
+    }
+
+    @Test
+    public void newMigrationsAreAppliedInOrder() {
+        assertTrue(MigrationRunner.run(db, withNewer("2.8", "2.9", "2.10")));
+
+        assertEquals(Arrays.asList("2.8", "2.9", "2.10"), db.applied);
+    }
+
+    @Test
+    public void failedMigrationStopsTheRun() {
+        db.failing = "2.9";
+
+        assertFalse(MigrationRunner.run(db, withNewer("2.8", "2.9", "2.10")));
+
+        assertEquals(Arrays.asList("2.8", "2.9"), db.applied);
+    }
+
+    @Test
+    public void changedMigrationStopsTheRun() {
+        List<Migration> migrations = new ArrayList<>(MigrationRunner.migrations());
+        Migration released = migrations.get(migrations.size() - 1);
+        migrations.set(migrations.size() - 1, new Migration(released.getVersion(), released.getDescription(), "SELECT 1"));
+        migrations.add(new Migration("2.8", "Newer"));
+
+        assertFalse(MigrationRunner.run(db, migrations));
+
+        assertEquals(Collections.<String>emptyList(), db.applied);
+    }
+
+    @Test
+    public void checkIsNotPartOfTheChecksum() {
+        Migration migration = new Migration("2.8", "Newer", "CREATE INDEX a_ind ON user (rfid)");
+        Migration checked = migration.checkedBy("SELECT id FROM user WHERE rfid IS NULL", "Give every user an RFID.");
+
+        assertEquals(migration.getChecksum(), checked.getChecksum());
+        assertNull(migration.getCheck());
+        assertEquals("SELECT id FROM user WHERE rfid IS NULL", checked.getCheck());
+    }
+
+    @Test
+    public void backfillsArePartOfTheChecksum() {
+        Migration migration = new Migration("2.8", "Newer", "CREATE TABLE a (b int(11))");
+        Migration backfilled = migration.backfilledBy("INSERT INTO a SELECT value FROM transaction WHERE date >= ? AND date < ?");
+
+        assertFalse(migration.getChecksum().equals(backfilled.getChecksum()));
+        assertEquals(migration.getStatements(), backfilled.getStatements());
+    }
+
+    /**
+     * @return The released migrations followed by empty ones with the given versions
+     */
+    private static List<Migration> withNewer(String... versions) {
+        List<Migration> migrations = new ArrayList<>(MigrationRunner.migrations());
+        for (String version : versions) {
+            migrations.add(new Migration(version, "Newer"));
+        }
+        return migrations;
+    }
+
+    /**
+     * Records the versions of the migrations it is asked to apply, and sets the version for all but the
+     * failing one.
+     */
+    private static class Recording extends DelegatingDBHandler {
+
+        private final List<String> applied = new ArrayList<>();
+        private String failing = null;
+
+        private Recording(DBHandler delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public boolean applyMigration(Migration migration) {
+            applied.add(migration.getVersion());
+            if (migration.getVersion().equals(failing)) return false;
+
+            return delegate.setVersion(migration.getVersion());
+        }
+    }
+}
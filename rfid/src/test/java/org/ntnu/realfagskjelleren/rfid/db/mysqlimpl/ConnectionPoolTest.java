@@ -0,0 +1,128 @@
+package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pool against in-memory SQLite databases, as the pool itself has nothing MySQL specific.
+ *
+ * @author Håvard Slettvold
+ */
+public class ConnectionPoolTest {
+
+    private static final String SQL = "SELECT ?;";
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        pool = new ConnectionPool("jdbc:sqlite::memory:", "", "", 0, 1, 300);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void closedStatementIsReused() throws Exception {
+        try (Connection con = pool.getConnection()) {
+            PreparedStatement first = con.prepareStatement(SQL);
+            assertEquals(7, select(first, 7));
+            first.close();
+            assertTrue(first.isClosed());
+
+            try (PreparedStatement second = con.prepareStatement(SQL)) {
+                assertEquals(8, select(second, 8));
+            }
+        }
+
+        assertEquals(1, pool.getStatementCacheHits());
+        assertEquals(1, pool.getStatementCacheMisses());
+    }
+
+    @Test
+    public void statementInUseIsNotHandedOutAgain() throws Exception {
+        try (Connection con = pool.getConnection();
+             PreparedStatement first = con.prepareStatement(SQL);
+             PreparedStatement second = con.prepareStatement(SQL)) {
+            first.setInt(1, 1);
+            assertEquals(2, select(second, 2));
+            assertEquals(1, select(first, 1));
+        }
+
+        assertEquals(0, pool.getStatementCacheHits());
+        assertEquals(2, pool.getStatementCacheMisses());
+    }
+
+    @Test
+    public void secondCloseLeavesTheNextHolderAlone() throws Exception {
+        try (Connection con = pool.getConnection()) {
+            PreparedStatement stale = con.prepareStatement(SQL);
+            stale.close();
+
+            try (PreparedStatement holder = con.prepareStatement(SQL)) {
+                holder.setInt(1, 5);
+                stale.close();
+
+                try (ResultSet rs = holder.executeQuery()) {
+                    assertTrue(rs.next());
+                    assertEquals(5, rs.getInt(1));
+                }
+
+                // Still held, so preparing the SQL again can't get the cached statement.
+                try (PreparedStatement other = con.prepareStatement(SQL)) {
+                    assertEquals(6, select(other, 6));
+                }
+            }
+        }
+
+        assertEquals(1, pool.getStatementCacheHits());
+        assertEquals(2, pool.getStatementCacheMisses());
+    }
+
+    @Test(expected = SQLException.class)
+    public void closedStatementCannotBeUsed() throws Exception {
+        try (Connection con = pool.getConnection()) {
+            PreparedStatement stale = con.prepareStatement(SQL);
+            stale.close();
+
+            try (PreparedStatement holder = con.prepareStatement(SQL)) {
+                stale.setInt(1, 3);
+            }
+        }
+    }
+
+    @Test
+    public void statementsOutliveTheLease() throws Exception {
+        try (Connection con = pool.getConnection();
+             PreparedStatement ps = con.prepareStatement(SQL)) {
+            assertEquals(1, select(ps, 1));
+        }
+
+        // The pool has one connection, so this is the same one with its cache.
+        try (Connection con = pool.getConnection();
+             PreparedStatement ps = con.prepareStatement(SQL)) {
+            assertEquals(2, select(ps, 2));
+        }
+
+        assertEquals(1, pool.getStatementCacheHits());
+    }
+
+    private static int select(PreparedStatement ps, int value) throws SQLException {
+        ps.setInt(1, value);
+        try (ResultSet rs = ps.executeQuery()) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.ntnu.realfagskjelleren.rfid.db.mysqlimpl;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class EccAllocatorTest {
+
+    @Test
+    public void allocatedEccIsTheFirstFreeOneFromTheStart() {
+        EccAllocator allocator = new EccAllocator(startingAt(10));
+        allocator.markUsed(EccAllocator.MIN_ECC + 10);
+        allocator.markUsed(EccAllocator.MIN_ECC + 11);
+
+        assertEquals(EccAllocator.MIN_ECC + 12, allocator.allocate());
+        // Now taken, so the next search from the same start goes past it.
+        assertEquals(EccAllocator.MIN_ECC + 13, allocator.allocate());
+    }
+
+    @Test
+    public void searchWrapsAroundPastTheLastEcc() {
+        EccAllocator allocator = new EccAllocator(startingAt(EccAllocator.MAX_ECC - EccAllocator.MIN_ECC));
+        allocator.markUsed(EccAllocator.MAX_ECC);
+
+        assertEquals(EccAllocator.MIN_ECC, allocator.allocate());
+    }
+
+    @Test
+    public void noEccIsAllocatedWhenAllAreUsed() {
+        EccAllocator allocator = new EccAllocator(startingAt(500));
+        for (int ecc = EccAllocator.MIN_ECC; ecc <= EccAllocator.MAX_ECC; ecc++) {
+            if (ecc != EccAllocator.MIN_ECC + 3) allocator.markUsed(ecc);
+        }
+
+        assertEquals(EccAllocator.MIN_ECC + 3, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+
+        allocator.release(EccAllocator.MIN_ECC + 3);
+        assertEquals(EccAllocator.MIN_ECC + 3, allocator.allocate());
+    }
+
+    @Test
+    public void eccsOutsideTheRangeAreIgnored() {
+        EccAllocator allocator = new EccAllocator(startingAt(0));
+        allocator.markUsed(EccAllocator.MIN_ECC - 1);
+        allocator.markUsed(EccAllocator.MAX_ECC + 1);
+
+        assertEquals(EccAllocator.MIN_ECC, allocator.allocate());
+    }
+
+    @Test
+    public void eccsInTheUserTableAreLoadedAsUsed() throws Exception {
+        EccAllocator allocator = new EccAllocator(startingAt(0));
+        assertFalse(allocator.isLoaded());
+
+        Class.forName("org.sqlite.JDBC");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement st = con.createStatement()) {
+            st.executeUpdate("CREATE TABLE user (ecc INTEGER NOT NULL);");
+            st.executeUpdate("INSERT INTO user (ecc) VALUES (" + EccAllocator.MIN_ECC + ");");
+            st.executeUpdate("INSERT INTO user (ecc) VALUES (" + (EccAllocator.MIN_ECC + 1) + ");");
+
+            allocator.load(con);
+        }
+
+        assertTrue(allocator.isLoaded());
+        assertEquals(EccAllocator.MIN_ECC + 2, allocator.allocate());
+    }
+
+    /**
+     * @return Random that starts every search at the given index
+     */
+    private static Random startingAt(final int index) {
+        return new Random() {
+            @Override
+            public int nextInt(int bound) {
+                return index;
+            }
+        };
+    }
+}
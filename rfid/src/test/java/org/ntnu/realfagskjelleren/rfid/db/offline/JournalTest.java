@@ -0,0 +1,115 @@
+package org.ntnu.realfagskjelleren.rfid.db.offline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class JournalTest {
+
+    // Layout of the file, as written by Journal.
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 48;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rfid", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws Exception {
+        Journal journal = new Journal(file.getPath(), 10);
+        assertTrue(journal.append(new Journal.Record(7, "0001234567", 200, true, 1425207600000L)));
+        assertTrue(journal.append(new Journal.Record(8, "0007654321", 35, false, 1425207601234L)));
+        journal.close();
+
+        journal = new Journal(file.getPath(), 10);
+        assertEquals(2, journal.pending());
+
+        Journal.Record record = journal.get(1);
+        assertEquals(8, record.user_id);
+        assertEquals("0007654321", record.rfid);
+        assertEquals(35, record.value);
+        assertFalse(record.is_deposit);
+        assertEquals(1425207601234L, record.timestamp);
+        journal.close();
+    }
+
+    @Test
+    public void journalEndsAtTheFirstTornRecord() throws Exception {
+        Journal journal = new Journal(file.getPath(), 10);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(new Journal.Record(i, "000000000" + i, 10 * i, false, i));
+        }
+        journal.close();
+
+        // Half-written value of the second record.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(HEADER_SIZE + RECORD_SIZE + 4);
+            raf.write(0x7f);
+        }
+
+        journal = new Journal(file.getPath(), 10);
+        assertEquals(1, journal.pending());
+        assertEquals(1, journal.get(0).user_id);
+        journal.close();
+    }
+
+    @Test
+    public void replayedRecordsAreNotReplayedAgain() throws Exception {
+        Journal journal = new Journal(file.getPath(), 10);
+        journal.append(new Journal.Record(1, "0000000001", 10, false, 1));
+        journal.append(new Journal.Record(2, "0000000002", 20, false, 2));
+        journal.markReplayed();
+        journal.close();
+
+        journal = new Journal(file.getPath(), 10);
+        assertEquals(1, journal.pending());
+        assertEquals(2, journal.get(0).user_id);
+
+        journal.markReplayed();
+        assertTrue(journal.isEmpty());
+        journal.close();
+
+        // An emptied journal starts from the beginning of the file again.
+        journal = new Journal(file.getPath(), 10);
+        assertTrue(journal.isEmpty());
+        journal.append(new Journal.Record(3, "0000000003", 30, true, 3));
+        assertEquals(1, journal.pending());
+        assertEquals(3, journal.get(0).user_id);
+        journal.close();
+    }
+
+    @Test
+    public void fullJournalRefusesRecords() throws Exception {
+        Journal journal = new Journal(file.getPath(), 2);
+        assertTrue(journal.append(new Journal.Record(1, "0000000001", 10, false, 1)));
+        assertTrue(journal.append(new Journal.Record(1, "0000000001", 10, false, 2)));
+        assertFalse(journal.append(new Journal.Record(1, "0000000001", 10, false, 3)));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreNotTakenForJournals() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeBytes("not a journal");
+        }
+
+        new Journal(file.getPath(), 10);
+    }
+}
@@ -0,0 +1,217 @@
+package org.ntnu.realfagskjelleren.rfid.db.offline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ntnu.realfagskjelleren.rfid.db.model.DBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.DelegatingDBHandler;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+import org.ntnu.realfagskjelleren.rfid.db.sqliteimpl.SQLiteDBHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class OfflineDBHandlerTest {
+
+    private static final String RFID = "0001234567";
+    private static final long REPLAY_INTERVAL = 20;
+
+    private File databaseFile;
+    private File journalFile;
+    private SQLiteDBHandler sqlite;
+    private Unreliable database;
+    private OfflineDBHandler db;
+
+    @Before
+    public void setUp() throws IOException {
+        databaseFile = File.createTempFile("rfid", ".db");
+        databaseFile.delete();
+        journalFile = File.createTempFile("rfid", ".journal");
+
+        sqlite = new SQLiteDBHandler(databaseFile.getPath());
+        assertTrue(sqlite.createDatabase());
+        database = new Unreliable(sqlite);
+        db = new OfflineDBHandler(database, journalFile.getPath(), REPLAY_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        sqlite.close();
+        journalFile.delete();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(databaseFile.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void offlinePurchasesAreReplayedWithTheTimeTheyWereMade() throws Exception {
+        User user = db.getOrCreate(RFID);
+        db.makeDeposit(user, 100);
+        goOffline(user);
+
+        long before = System.currentTimeMillis();
+        assertEquals(70, db.makePurchase(user, 30));
+        long after = System.currentTimeMillis();
+        assertEquals(70, db.getOrCreate(RFID).getCredit());
+        assertEquals(100, sqlite.getOrCreate(RFID).getCredit());
+
+        Thread.sleep(50);
+        database.down = false;
+        awaitCredit(RFID, 70);
+
+        Transaction replayed = sqlite.getTransactions(user.getId(), 1).get(0);
+        assertEquals(70, replayed.getNew_balance());
+        assertTrue(replayed.getDate().getTime() >= before);
+        assertTrue(replayed.getDate().getTime() <= after);
+        assertEquals(30, sqlite.totalSpendings(RFID));
+    }
+
+    @Test
+    public void purchaseRefusedByTheDatabaseIsStillCharged() throws Exception {
+        User user = db.getOrCreate(RFID);
+        db.makeDeposit(user, 50);
+        goOffline(user);
+
+        assertEquals(10, db.makePurchase(user, 40));
+        // Another till spends from the same card meanwhile.
+        sqlite.makePurchase(user, 30);
+
+        database.down = false;
+        awaitCredit(RFID, -20);
+
+        assertEquals(-20, sqlite.getTransactions(user.getId(), 1).get(0).getNew_balance());
+        assertEquals(70, sqlite.totalSpendings(RFID));
+        assertTrue(sqlite.topDays().get(0).endsWith("|70"));
+    }
+
+    @Test
+    public void replayFindsTheUserAfterAnRfidChange() throws Exception {
+        User user = db.getOrCreate(RFID);
+        db.makeDeposit(user, 100);
+        goOffline(user);
+
+        assertEquals(75, db.makePurchase(user, 25));
+        // Another till moves the card to a new RFID.
+        sqlite.updateUserRfid(user.getId(), "0007654321");
+
+        database.down = false;
+        awaitCredit("0007654321", 75);
+        assertFalse(sqlite.rfidExists(RFID));
+    }
+
+    @Test
+    public void journalIsReplayedAfterRestart() throws Exception {
+        User user = db.getOrCreate(RFID);
+        db.makeDeposit(user, 100);
+        goOffline(user);
+        assertEquals(60, db.makePurchase(user, 40));
+        db.close();
+
+        database.down = false;
+        db = new OfflineDBHandler(database, journalFile.getPath(), REPLAY_INTERVAL);
+        awaitCredit(RFID, 60);
+    }
+
+    @Test
+    public void changesToUsersWaitForTheJournal() throws Exception {
+        User user = db.getOrCreate(RFID);
+        User other = db.getOrCreate("0007654321");
+        db.makeDeposit(user, 100);
+        goOffline(user);
+        db.makePurchase(user, 10);
+
+        try {
+            db.mergeUser(user.getId(), other.getId());
+            fail("Merged while the journal had records for the user.");
+        } catch (SQLException expected) {
+        }
+    }
+
+    /**
+     * Takes the database down. The first purchase after that fails, as it would when the connection
+     * drops during it, and puts the handler offline.
+     */
+    private void goOffline(User user) {
+        database.down = true;
+        try {
+            db.makePurchase(user, 1);
+            fail("Purchase went through with the database down.");
+        } catch (SQLException expected) {
+        }
+    }
+
+    private void awaitCredit(String rfid, int credit) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sqlite.getOrCreate(rfid).getCredit() != credit && System.currentTimeMillis() < deadline) {
+            Thread.sleep(REPLAY_INTERVAL);
+        }
+
+        assertEquals(credit, sqlite.getOrCreate(rfid).getCredit());
+    }
+
+    /**
+     * Database that can be taken down, failing every call the way a lost connection does.
+     */
+    private static class Unreliable extends DelegatingDBHandler {
+
+        private volatile boolean down = false;
+
+        private Unreliable(DBHandler delegate) {
+            super(delegate);
+        }
+
+        private void check() throws SQLException {
+            if (down) throw new SQLException("Communications link failure", "08S01");
+        }
+
+        @Override
+        public boolean testConnection() {
+            return !down && delegate.testConnection();
+        }
+
+        @Override
+        public User getOrCreate(String rfid) throws SQLException {
+            check();
+            return delegate.getOrCreate(rfid);
+        }
+
+        @Override
+        public int makeDeposit(User user, int value) throws SQLException {
+            check();
+            return delegate.makeDeposit(user, value);
+        }
+
+        @Override
+        public int makePurchase(User user, int value) throws SQLException {
+            check();
+            return delegate.makePurchase(user, value);
+        }
+
+        @Override
+        public int replayTransaction(int user_id, int value, boolean is_deposit, Timestamp date) throws SQLException {
+            check();
+            return delegate.replayTransaction(user_id, value, is_deposit, date);
+        }
+
+        @Override
+        public boolean mergeUser(int toUser, int fromUser) throws SQLException {
+            check();
+            return delegate.mergeUser(toUser, fromUser);
+        }
+
+        @Override
+        public void close() {
+            // The test closes the database itself, so it outlives a closed OfflineDBHandler.
+        }
+    }
+}
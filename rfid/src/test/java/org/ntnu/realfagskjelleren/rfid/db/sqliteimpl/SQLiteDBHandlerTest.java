@@ -0,0 +1,189 @@
+package org.ntnu.realfagskjelleren.rfid.db.sqliteimpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.Migration;
+import org.ntnu.realfagskjelleren.rfid.db.migrations.MigrationRunner;
+import org.ntnu.realfagskjelleren.rfid.db.model.Transaction;
+import org.ntnu.realfagskjelleren.rfid.db.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class SQLiteDBHandlerTest {
+
+    private File file;
+    private SQLiteDBHandler db;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rfid", ".db");
+        file.delete();
+
+        db = new SQLiteDBHandler(file.getPath());
+        assertTrue(db.createDatabase());
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void newDatabaseNeedsNoMigrations() {
+        assertEquals("2.7", db.getVersion().getVersion());
+        assertTrue(MigrationRunner.run(db));
+        assertEquals("2.7", db.getVersion().getVersion());
+    }
+
+    @Test
+    public void migrationWithoutSQLiteVersionFails() {
+        assertFalse(db.applyMigration(new Migration("9.9", "Not ported", "ALTER TABLE user ADD COLUMN nothing int(11)")));
+        assertEquals("2.7", db.getVersion().getVersion());
+    }
+
+    @Test
+    public void getOrCreateReturnsTheSameUser() throws Exception {
+        User created = db.getOrCreate("0001234567");
+        User found = db.getOrCreate("0001234567");
+
+        assertEquals(created.getId(), found.getId());
+        assertEquals(1, db.getUserCount());
+    }
+
+    @Test
+    public void purchaseNeedsEnoughCredit() throws Exception {
+        User user = db.getOrCreate("0001234567");
+
+        assertEquals(500, db.makeDeposit(user, 500));
+        assertEquals(300, db.makePurchase(user, 200));
+        assertEquals(-1, db.makePurchase(user, 400));
+
+        assertEquals(300, db.getOrCreate("0001234567").getCredit());
+        assertEquals(2, db.getTransactions(10).size());
+    }
+
+    @Test
+    public void purchasesUpdateStatistics() throws Exception {
+        User user = db.getOrCreate("0001234567");
+        db.makeDeposit(user, 5000);
+        db.makePurchase(user, 200);
+        db.makePurchase(user, 50);
+        // Amounts of 1000 or more are not counted as spending.
+        db.makePurchase(user, 1000);
+
+        assertEquals(250, db.totalSpendings("0001234567"));
+        assertEquals(Arrays.asList("0001234567|250"), db.getTopTen());
+        assertEquals(Arrays.asList("0001234567|1250"), db.getTopTenFromLastHours(1));
+        assertEquals(1, db.topDays().size());
+        assertTrue(db.topDays().get(0).endsWith("|250"));
+
+        db.rebuildStatistics();
+
+        assertEquals(250, db.totalSpendings("0001234567"));
+        assertEquals(1, db.topDays().size());
+        assertTrue(db.topDays().get(0).endsWith("|250"));
+    }
+
+    @Test
+    public void rebuildingStatisticsKeepsLastUsed() throws Exception {
+        Timestamp longAgo = Timestamp.valueOf("2015-03-01 12:00:00");
+        db.importUsers(Arrays.asList(new User(0, "0001234567", false, 100, longAgo, longAgo)));
+
+        db.rebuildStatistics();
+
+        assertEquals(longAgo, db.getOrCreate("0001234567").getLastUsed());
+    }
+
+    @Test
+    public void mergeMovesTransactionsCreditAndSpending() throws Exception {
+        User to = db.getOrCreate("0001111111");
+        User from = db.getOrCreate("0002222222");
+        db.makeDeposit(to, 10);
+        db.makeDeposit(from, 100);
+        db.makePurchase(from, 60);
+
+        db.mergeUser(to.getId(), from.getId());
+
+        assertFalse(db.rfidExists("0002222222"));
+        assertEquals(3, db.getTransactions(to.getId(), 10).size());
+        assertEquals(60, db.totalSpendings("0001111111"));
+        assertEquals(50, db.getOrCreate("0001111111").getCredit());
+    }
+
+    @Test
+    public void creditChangesIncreaseTheVersion() throws Exception {
+        User user = db.getOrCreate("0001234567");
+        assertEquals(0, user.getVersion());
+
+        db.makeDeposit(user, 100);
+        db.makePurchase(user, 40);
+        // A refused purchase changes nothing.
+        db.makePurchase(user, 100);
+
+        assertEquals(2, db.getOrCreate("0001234567").getVersion());
+    }
+
+    @Test
+    public void userPagesFollowEachOther() throws Exception {
+        Timestamp earlier = Timestamp.valueOf("2015-03-01 12:00:00");
+        Timestamp later = Timestamp.valueOf("2015-03-02 12:00:00");
+        List<User> imported = new ArrayList<>();
+        // Imported users are last used when they were created. The first user is used last, the rest
+        // are used at the same time and follow each other by id.
+        imported.add(new User(0, "0000000000", false, 0, later, later));
+        for (int i = 1; i < 5; i++) {
+            imported.add(new User(0, "000000000" + i, false, 0, earlier, earlier));
+        }
+        db.importUsers(imported);
+
+        List<User> first = db.getUsersAfter(null, 2);
+        List<User> second = db.getUsersAfter(first.get(1), 2);
+        List<User> third = db.getUsersAfter(second.get(1), 2);
+        assertTrue(db.getUsersAfter(third.get(0), 2).isEmpty());
+
+        List<String> rfids = new ArrayList<>();
+        for (List<User> page : Arrays.asList(first, second, third)) {
+            for (User user : page) rfids.add(user.getRfid());
+        }
+        assertEquals(Arrays.asList("0000000001", "0000000002", "0000000003", "0000000004", "0000000000"), rfids);
+    }
+
+    @Test
+    public void transactionPagesFollowEachOther() throws Exception {
+        User user = db.getOrCreate("0001234567");
+        User other = db.getOrCreate("0007654321");
+        for (int i = 1; i <= 5; i++) {
+            db.makeDeposit(user, i);
+            db.makeDeposit(other, 100);
+        }
+
+        List<Transaction> newest = db.getTransactions(user.getId(), 2);
+        assertEquals(5, newest.get(0).getValue());
+        assertEquals(4, newest.get(1).getValue());
+
+        List<Transaction> older = db.getTransactionsBefore(user.getId(), newest.get(1).getId(), 2);
+        assertEquals(3, older.get(0).getValue());
+        assertEquals(2, older.get(1).getValue());
+
+        List<Transaction> newer = db.getTransactionsAfter(user.getId(), older.get(1).getId(), 2);
+        assertEquals(4, newer.get(0).getValue());
+        assertEquals(3, newer.get(1).getValue());
+
+        assertEquals(1, db.getTransactionsBefore(user.getId(), older.get(1).getId(), 2).size());
+        assertEquals(10, db.getTransactionsBefore(Integer.MAX_VALUE, 20).size());
+    }
+}
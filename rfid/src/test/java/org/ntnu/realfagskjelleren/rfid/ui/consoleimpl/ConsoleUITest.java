@@ -2,6 +2,10 @@ package org.ntnu.realfagskjelleren.rfid.ui.consoleimpl;
 
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.Arrays;
 import java.util.List;
 
@@ -122,4 +126,46 @@ public class ConsoleUITest {
 //            System.out.println(line);
 //        }
     }
+
+    @Test
+    public void lineTypedBeforeConfirmationIsKeptForTheMainLoop() throws Exception {
+        InputStream stdin = System.in;
+        final PipedOutputStream typing = new PipedOutputStream();
+        System.setIn(new PipedInputStream(typing));
+
+        try {
+            ui = new ConsoleUI(60);
+            typing.write("hello\n".getBytes());
+            typing.flush();
+            assertEquals("hello", ui.takeInput("Command"));
+
+            // A card scanned while the till is busy, before the question is asked. The pipe only wakes the
+            // reader at once when flushed.
+            typing.write("0001234567\n".getBytes());
+            typing.flush();
+            Thread.sleep(200);
+
+            Thread answer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                        typing.write("5\n".getBytes());
+                        typing.flush();
+                        typing.close();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            answer.start();
+
+            assertTrue(ui.takeConfirmation("Show more?"));
+            answer.join();
+            assertEquals("0001234567", ui.takeInput("Card"));
+            assertNull(ui.takeInput("Card"));
+        } finally {
+            System.setIn(stdin);
+        }
+    }
 }
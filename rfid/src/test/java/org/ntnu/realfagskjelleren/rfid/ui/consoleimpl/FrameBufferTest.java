@@ -0,0 +1,47 @@
+package org.ntnu.realfagskjelleren.rfid.ui.consoleimpl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Håvard Slettvold
+ */
+public class FrameBufferTest {
+
+    @Test
+    public void growsPastItsCapacity() {
+        FrameBuffer frame = new FrameBuffer(16);
+
+        frame.append("╔══════════════╗");
+        frame.append("║ longer than the buffer started out ║");
+
+        assertEquals("╔══════════════╗║ longer than the buffer started out ║", frame.toString());
+    }
+
+    @Test
+    public void writesTheFrameAndStartsOver() throws Exception {
+        PrintStream out = System.out;
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(written, false, "UTF-8"));
+
+        try {
+            FrameBuffer frame = new FrameBuffer(16);
+            Console console = new Console();
+
+            frame.append("first");
+            frame.writeTo(console);
+            assertEquals(0, frame.length());
+
+            frame.append("second");
+            frame.writeTo(console);
+        } finally {
+            System.setOut(out);
+        }
+
+        assertEquals("firstsecond", written.toString("UTF-8"));
+    }
+}